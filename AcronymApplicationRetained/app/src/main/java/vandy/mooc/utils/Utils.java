@@ -7,6 +7,7 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import vandy.mooc.aidl.AcronymData;
 import vandy.mooc.jsonacronym.AcronymJSONParser;
@@ -14,6 +15,7 @@ import vandy.mooc.jsonacronym.JsonAcronym;
 import android.app.Activity;
 import android.content.Context;
 import android.os.IBinder;
+import android.util.Log;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Toast;
 
@@ -55,13 +57,23 @@ public class Utils {
                 new URL(sAcronym_Web_Service_URL
                         + acronym);
 
-            // Opens a connection to the Acronym Service.
+            // Opens a connection to the Acronym Service, asking for
+            // a gzipped body.  Asking explicitly means the connection
+            // no longer decompresses it, so it's done here.
             HttpURLConnection urlConnection =
                 (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
             
-            // Sends the GET request and reads the Json results.
-            try (InputStream in =
-                 new BufferedInputStream(urlConnection.getInputStream())) {
+            // Sends the GET request and reads the Json results,
+            // decompressing them as they're parsed and counting the
+            // bytes on either side of the decompression.
+            final CountingInputStream wire =
+                new CountingInputStream(urlConnection.getInputStream());
+            try (CountingInputStream parsed =
+                 new CountingInputStream("gzip".equalsIgnoreCase(urlConnection.getContentEncoding())
+                                         ? new GZIPInputStream(wire)
+                                         : wire);
+                 InputStream in = new BufferedInputStream(parsed)) {
                  // Create the parser.
                  final AcronymJSONParser parser =
                      new AcronymJSONParser();
@@ -69,6 +81,8 @@ public class Utils {
                 // Parse the Json results and create JsonAcronym data
                 // objects.
                 jsonAcronyms = parser.parseJsonStream(in);
+                Log.d(TAG, "Read " + wire.getCount() + " bytes for "
+                      + parsed.getCount() + " bytes of Json for " + acronym);
             } finally {
                 urlConnection.disconnect();
             }
@@ -0,0 +1,182 @@
+package vandy.mooc.aidl;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Round-trips WeatherDataLists through a Parcel, and compares the
+ * size and unmarshaling time of their columnar encoding with those of
+ * the same WeatherData written with writeTypedList().
+ */
+public class WeatherDataListTest extends TestCase {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Shape of the list measured: a batch of results in which several
+     * entries share each name, as when a subscription polls the same
+     * few cities.
+     */
+    private static final int ENTRIES = 200;
+    private static final int DISTINCT_NAMES = 20;
+    private static final int ITERATIONS = 1000;
+
+    /**
+     * Shared names, null and empty names, and null elements should
+     * all come back as they were sent.
+     */
+    public void testRoundTrip() {
+        final List<WeatherData> source = new ArrayList<WeatherData>();
+        source.add(weatherData(1, "Nashville"));
+        source.add(weatherData(2, "Memphis"));
+        source.add(weatherData(3, "Nashville"));
+        source.add(weatherData(4, null));
+        source.add(null);
+        source.add(weatherData(5, ""));
+        source.add(weatherData(6, "S\u00e3o Jos\u00e9 \u2603"));
+        source.add(weatherData(7, "Memphis"));
+
+        final WeatherDataList received = roundTrip(source);
+
+        assertEquals(source.size(), received.size());
+        for (int i = 0; i < source.size(); i++)
+            assertEquals(source.get(i), received.get(i));
+        assertEquals(source, received);
+
+        // The views are created once, on demand, and entries that
+        // shared a name share its String.
+        assertSame(received.get(0), received.get(0));
+        assertSame(received.get(0).getmName(), received.get(2).getmName());
+        assertNull(received.get(4));
+    }
+
+    public void testEmptyList() {
+        final WeatherDataList received =
+            roundTrip(Collections.<WeatherData>emptyList());
+
+        assertEquals(0, received.size());
+        assertTrue(received.isEmpty());
+    }
+
+    /**
+     * Report the Parcel size and unmarshaling time of a batch as a
+     * WeatherDataList and as a typed list, and check the columnar
+     * encoding is the smaller.
+     */
+    public void testSize() {
+        final List<WeatherData> source = batch();
+
+        final Parcel columnar = Parcel.obtain();
+        final Parcel typed = Parcel.obtain();
+        try {
+            new WeatherDataList(source).writeToParcel(columnar, 0);
+            typed.writeTypedList(source);
+
+            // Unmarshal each a few times first so neither is measured
+            // cold.
+            unmarshalColumnar(columnar, ITERATIONS / 10);
+            unmarshalTyped(typed, ITERATIONS / 10);
+            final double columnarMicros =
+                unmarshalColumnar(columnar, ITERATIONS);
+            final double typedMicros = unmarshalTyped(typed, ITERATIONS);
+
+            Log.i(TAG, String.format("%d entries, %d names:"
+                                     + " WeatherDataList %d bytes,"
+                                     + " %.1f us to unmarshal;"
+                                     + " writeTypedList %d bytes,"
+                                     + " %.1f us to unmarshal",
+                                     ENTRIES,
+                                     DISTINCT_NAMES,
+                                     columnar.dataSize(),
+                                     columnarMicros,
+                                     typed.dataSize(),
+                                     typedMicros));
+            assertTrue("WeatherDataList should be smaller",
+                       columnar.dataSize() < typed.dataSize());
+        } finally {
+            columnar.recycle();
+            typed.recycle();
+        }
+    }
+
+    /**
+     * @return The average microseconds taken to unmarshal the
+     *         WeatherDataList in @a parcel and create all its
+     *         WeatherData, over @a iterations.
+     */
+    private static double unmarshalColumnar(Parcel parcel,
+                                            int iterations) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parcel.setDataPosition(0);
+            final WeatherDataList list =
+                WeatherDataList.CREATOR.createFromParcel(parcel);
+            for (int j = 0; j < list.size(); j++)
+                assertNotNull(list.get(j));
+        }
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+
+    /**
+     * @return The average microseconds taken to unmarshal the typed
+     *         list in @a parcel, over @a iterations.
+     */
+    private static double unmarshalTyped(Parcel parcel,
+                                         int iterations) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parcel.setDataPosition(0);
+            final List<WeatherData> list =
+                parcel.createTypedArrayList(WeatherData.CREATOR);
+            for (int j = 0; j < list.size(); j++)
+                assertNotNull(list.get(j));
+        }
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+
+    /**
+     * @return What the receiving process gets when @a source is sent
+     *         as a WeatherDataList.
+     */
+    private static WeatherDataList roundTrip(List<WeatherData> source) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            new WeatherDataList(source).writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return WeatherDataList.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @return ENTRIES WeatherData spread over DISTINCT_NAMES cities.
+     */
+    private static List<WeatherData> batch() {
+        final List<WeatherData> batch = new ArrayList<WeatherData>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++)
+            batch.add(weatherData(i % DISTINCT_NAMES,
+                                  "City number " + i % DISTINCT_NAMES));
+        return batch;
+    }
+
+    private static WeatherData weatherData(long id,
+                                           String name) {
+        return new WeatherData(id,
+                               name,
+                               2.42 + id,
+                               310.002,
+                               71.65 - id,
+                               76,
+                               1431427373 + id,
+                               1431477841 + id);
+    }
+}
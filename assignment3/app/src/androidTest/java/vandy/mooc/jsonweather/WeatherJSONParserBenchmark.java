@@ -0,0 +1,230 @@
+package vandy.mooc.jsonweather;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import vandy.mooc.aidl.WeatherData;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the allocations made per document by the JsonReader-based
+ * parser WeatherJSONParser replaced, by WeatherJSONParser parsing
+ * documents into JsonWeather, and by WeatherJSONParser projecting
+ * them straight into WeatherData, and checks all three read documents
+ * the same way.
+ */
+public class WeatherJSONParserBenchmark extends TestCase {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    private static final int WARMUP_DOCUMENTS = 2000;
+    private static final int DOCUMENTS = 5000;
+
+    /**
+     * A document as the web service sends it, with fields the parser
+     * doesn't want ("coord", "clouds", "rain") as well as those it
+     * does.
+     */
+    private static final String DOCUMENT =
+        "{\"coord\":{\"lon\":-86.78,\"lat\":36.17},"
+        + "\"sys\":{\"message\":0.0138,\"country\":\"US\","
+        + "\"sunrise\":1431427373,\"sunset\":1431477841},"
+        + "\"weather\":[{\"id\":802,\"main\":\"Clouds\","
+        + "\"description\":\"scattered clouds\",\"icon\":\"03d\"},"
+        + "{\"id\":500,\"main\":\"Rain\","
+        + "\"description\":\"light rain\",\"icon\":\"10d\"}],"
+        + "\"base\":\"stations\","
+        + "\"main\":{\"temp\":71.65,\"pressure\":1010.71,\"humidity\":76,"
+        + "\"temp_min\":68,\"temp_max\":75.2,\"sea_level\":1027.66,"
+        + "\"grnd_level\":1010.71},"
+        + "\"wind\":{\"speed\":2.42,\"deg\":310.002},"
+        + "\"clouds\":{\"all\":36},"
+        + "\"rain\":{\"3h\":0.25,\"history\":[0.1,0.2,{\"note\":\"\\\"skip\\\" me\"}]},"
+        + "\"dt\":1431470800,"
+        + "\"id\":4644585,"
+        + "\"name\":\"S\u00e3o Jos\u00e9 \\u2603\","
+        + "\"cod\":200}";
+
+    /**
+     * The web service's answer for a location it doesn't know.
+     */
+    private static final String NOT_FOUND =
+        "{\"cod\":\"404\",\"message\":\"city not found\"}";
+
+    public void testParse() throws Exception {
+        assertDocument(parse(DOCUMENT));
+        assertDocument(new JsonReaderWeatherParser()
+                       .parseJson(new ByteArrayInputStream(DOCUMENT.getBytes("UTF-8"))));
+        assertEquals(404, parse(NOT_FOUND).getCod());
+    }
+
+    /**
+     * Check @a jsonWeather holds what DOCUMENT says.
+     */
+    private static void assertDocument(JsonWeather jsonWeather) {
+        assertEquals("S\u00e3o Jos\u00e9 \u2603", jsonWeather.getName());
+        assertEquals(4644585, jsonWeather.getId());
+        assertEquals(1431470800, jsonWeather.getDt());
+        assertEquals(200, jsonWeather.getCod());
+        assertEquals("stations", jsonWeather.getBase());
+        assertEquals(71.65, jsonWeather.getMain().getTemp(), 0);
+        assertEquals(1010.71, jsonWeather.getMain().getPressure(), 0);
+        assertEquals(76, jsonWeather.getMain().getHumidity());
+        assertEquals(2.42, jsonWeather.getWind().getSpeed(), 0);
+        assertEquals(310.002, jsonWeather.getWind().getDeg(), 0);
+        assertEquals("US", jsonWeather.getSys().getCountry());
+        assertEquals(0.0138, jsonWeather.getSys().getMessage(), 0);
+        assertEquals(1431427373, jsonWeather.getSys().getSunrise());
+        assertEquals(1431477841, jsonWeather.getSys().getSunset());
+
+        final List<Weather> weathers = jsonWeather.getWeather();
+        assertEquals(2, weathers.size());
+        assertEquals(802, weathers.get(0).getId());
+        assertEquals("Clouds", weathers.get(0).getMain());
+        assertEquals("scattered clouds", weathers.get(0).getDescription());
+        assertEquals("03d", weathers.get(0).getIcon());
+        assertEquals(500, weathers.get(1).getId());
+        assertEquals("Rain", weathers.get(1).getMain());
+        assertEquals("light rain", weathers.get(1).getDescription());
+        assertEquals("10d", weathers.get(1).getIcon());
+    }
+
+    /**
+     * A projected WeatherData should hold what WeatherWebService used
+     * to copy out of a JsonWeather.
+     */
+    public void testProjection() throws Exception {
+        final JsonWeather jsonWeather = parse(DOCUMENT);
+        final long[] metadata = new long[WeatherJSONParser.METADATA_SIZE];
+        final WeatherData weatherData =
+            project(DOCUMENT, metadata);
+
+        assertEquals(new WeatherData(jsonWeather.getId(),
+                                     jsonWeather.getName(),
+                                     jsonWeather.getWind().getSpeed(),
+                                     jsonWeather.getWind().getDeg(),
+                                     jsonWeather.getMain().getTemp(),
+                                     jsonWeather.getMain().getHumidity(),
+                                     jsonWeather.getSys().getSunrise(),
+                                     jsonWeather.getSys().getSunset()),
+                     weatherData);
+        assertEquals(jsonWeather.getCod(),
+                     metadata[WeatherJSONParser.METADATA_COD]);
+        assertEquals(jsonWeather.getDt(),
+                     metadata[WeatherJSONParser.METADATA_DT]);
+
+        project(NOT_FOUND, metadata);
+        assertEquals(404, metadata[WeatherJSONParser.METADATA_COD]);
+        assertEquals(0, metadata[WeatherJSONParser.METADATA_DT]);
+    }
+
+    /**
+     * Report the objects and bytes allocated per document by the
+     * JsonReader-based parser, by WeatherJSONParser when parsing, and
+     * by WeatherJSONParser when projecting.
+     */
+    public void testAllocations() throws Exception {
+        final long[] jsonReader = allocationsPerDocument(Way.JSON_READER);
+        final long[] parsing = allocationsPerDocument(Way.PARSE);
+        final long[] projection = allocationsPerDocument(Way.PROJECT);
+
+        Log.i(TAG, String.format("per document: JsonReader %d objects,"
+                                 + " %d bytes; parsing %d objects,"
+                                 + " %d bytes; projection %d objects,"
+                                 + " %d bytes",
+                                 jsonReader[0],
+                                 jsonReader[1],
+                                 parsing[0],
+                                 parsing[1],
+                                 projection[0],
+                                 projection[1]));
+        // Allocation counting isn't supported everywhere.
+        if (jsonReader[1] > 0) {
+            assertTrue("Parsing should allocate less than JsonReader",
+                       parsing[1] < jsonReader[1]);
+            assertTrue("Projecting should allocate less",
+                       projection[1] < parsing[1]);
+        }
+    }
+
+    /**
+     * The ways of reading a document testAllocations() measures.
+     */
+    private enum Way {
+        JSON_READER,
+        PARSE,
+        PROJECT
+    }
+
+    /**
+     * @return The number of objects and of bytes allocated by the
+     *         calling thread per document read in @a way.
+     */
+    private long[] allocationsPerDocument(Way way) throws Exception {
+        final JsonReaderWeatherParser baseline =
+            new JsonReaderWeatherParser();
+        final WeatherJSONParser parser = new WeatherJSONParser();
+        final ByteArrayInputStream in =
+            new ByteArrayInputStream(DOCUMENT.getBytes("UTF-8"));
+        final long[] metadata = new long[WeatherJSONParser.METADATA_SIZE];
+        for (int i = 0; i < WARMUP_DOCUMENTS; i++) {
+            in.reset();
+            read(way, baseline, parser, in, metadata);
+        }
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < DOCUMENTS; i++) {
+                in.reset();
+                read(way, baseline, parser, in, metadata);
+            }
+            return new long[] {
+                Debug.getThreadAllocCount() / DOCUMENTS,
+                Debug.getThreadAllocSize() / DOCUMENTS
+            };
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Read the document in @a in the way @a way says.
+     */
+    private static void read(Way way,
+                             JsonReaderWeatherParser baseline,
+                             WeatherJSONParser parser,
+                             ByteArrayInputStream in,
+                             long[] metadata) throws Exception {
+        switch (way) {
+        case JSON_READER:
+            baseline.parseJson(in);
+            break;
+        case PARSE:
+            parser.parseJson(in);
+            break;
+        case PROJECT:
+            parser.parseWeatherData(in, metadata);
+            break;
+        }
+    }
+
+    private static WeatherData project(String document,
+                                       long[] metadata) throws Exception {
+        return new WeatherJSONParser()
+            .parseWeatherData(new ByteArrayInputStream(document.getBytes("UTF-8")),
+                              metadata);
+    }
+
+    private static JsonWeather parse(String document) throws Exception {
+        return new WeatherJSONParser()
+            .parseJson(new ByteArrayInputStream(document.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,170 @@
+package vandy.mooc.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a weather lookup path with concurrent callers and measures
+ * its throughput and latency.  Each request looks up one of a set of
+ * hot locations, which should be cached, with probability hitRatio,
+ * and otherwise a location never looked up before.
+ */
+public class LoadGenerator {
+    /**
+     * Makes one blocking lookup.
+     */
+    public interface Caller {
+        /**
+         * @return True if weather for @a location was found.
+         */
+        boolean call(String location) throws Exception;
+    }
+
+    /**
+     * Seed of the callers' choices of location, so runs are
+     * repeatable.
+     */
+    private static final long SEED = 42;
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Report {
+        public final String mName;
+        public final int mCallers;
+        public final double mHitRatio;
+        public final int mRequests;
+        public final long mFailures;
+        public final double mThroughput;
+        public final double mP50;
+        public final double mP95;
+        public final double mP99;
+
+        Report(String name,
+               int callers,
+               double hitRatio,
+               long[] latencies,
+               long failures,
+               long elapsedNanos) {
+            mName = name;
+            mCallers = callers;
+            mHitRatio = hitRatio;
+            mRequests = latencies.length;
+            mFailures = failures;
+            mThroughput = latencies.length * 1e9 / elapsedNanos;
+            Arrays.sort(latencies);
+            mP50 = percentile(latencies, 0.50);
+            mP95 = percentile(latencies, 0.95);
+            mP99 = percentile(latencies, 0.99);
+        }
+
+        /**
+         * @return The latency in milliseconds that fraction @a p of
+         *         the sorted @a latencies don't exceed.
+         */
+        private static double percentile(long[] latencies, double p) {
+            if (latencies.length == 0)
+                return 0;
+            final int rank = (int) Math.ceil(p * latencies.length);
+            return latencies[Math.max(rank, 1) - 1] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: callers=%d hitRatio=%.2f requests=%d"
+                                 + " failures=%d throughput=%.1f/s"
+                                 + " p50=%.2fms p95=%.2fms p99=%.2fms",
+                                 mName,
+                                 mCallers,
+                                 mHitRatio,
+                                 mRequests,
+                                 mFailures,
+                                 mThroughput,
+                                 mP50,
+                                 mP95,
+                                 mP99);
+        }
+    }
+
+    /**
+     * Run @a callers threads making @a requestsPerCaller lookups each
+     * through @a caller.
+     *
+     * @param hotLocations Locations a hit is chosen from.
+     * @param missPrefix Prefix of the locations made up for misses,
+     *        which must not have been looked up before.
+     */
+    public static Report run(String name,
+                             final Caller caller,
+                             final int callers,
+                             final int requestsPerCaller,
+                             final double hitRatio,
+                             final List<String> hotLocations,
+                             final String missPrefix)
+        throws InterruptedException {
+        final long[][] latencies = new long[callers][requestsPerCaller];
+        final AtomicLong failures = new AtomicLong();
+        final AtomicInteger nextMiss = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>(callers);
+
+        for (int i = 0; i < callers; i++) {
+            final int index = i;
+            final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        final Random random = new Random(SEED + index);
+                        try {
+                            start.await();
+                            for (int j = 0; j < requestsPerCaller; j++) {
+                                final String location =
+                                    random.nextDouble() < hitRatio
+                                    ? hotLocations.get(random.nextInt(hotLocations.size()))
+                                    : missPrefix + nextMiss.getAndIncrement();
+                                final long begin = System.nanoTime();
+                                boolean found;
+                                try {
+                                    found = caller.call(location);
+                                } catch (Exception e) {
+                                    found = false;
+                                }
+                                latencies[index][j] = System.nanoTime() - begin;
+                                if (!found)
+                                    failures.incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                },
+                name + "-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        final long elapsed = System.nanoTime() - begin;
+
+        final long[] all = new long[callers * requestsPerCaller];
+        for (int i = 0; i < callers; i++)
+            System.arraycopy(latencies[i],
+                             0,
+                             all,
+                             i * requestsPerCaller,
+                             requestsPerCaller);
+        return new Report(name,
+                          callers,
+                          hitRatio,
+                          all,
+                          failures.get(),
+                          elapsed);
+    }
+}
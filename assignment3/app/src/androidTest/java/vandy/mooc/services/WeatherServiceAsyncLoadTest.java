@@ -0,0 +1,177 @@
+package vandy.mooc.services;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vandy.mooc.aidl.WeatherData;
+import vandy.mooc.aidl.WeatherDataList;
+import vandy.mooc.aidl.WeatherRequest;
+import vandy.mooc.aidl.WeatherResults;
+import vandy.mooc.utils.LocalWeatherServer;
+import vandy.mooc.utils.WeatherWebService;
+
+/**
+ * Load test of WeatherServiceAsync: concurrent callers make one-way
+ * WeatherRequest.getCurrentWeather() calls against a
+ * LocalWeatherServer and wait for their WeatherResults callbacks,
+ * with several mixes of cache hits and misses, and the throughput and
+ * latency percentiles of each run are logged.  The service is hosted
+ * in the test's process, so calls skip the marshaling a real client
+ * in another process pays for.
+ */
+public class WeatherServiceAsyncLoadTest extends ServiceTestCase<WeatherServiceAsync> {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Shape of the load.  The service queues at most 32 lookups, so
+     * more callers than that would be answered "busy".
+     */
+    private static final long SERVER_LATENCY = 10;
+    private static final int[] CALLERS = { 1, 8 };
+    private static final double[] HIT_RATIOS = { 1.0, 0.9, 0.5 };
+    private static final int REQUESTS_PER_CALLER = 50;
+    private static final int HOT_LOCATIONS = 16;
+    private static final long TIMEOUT = 10000;
+
+    private LocalWeatherServer mServer;
+    private WeatherRequest mWeatherRequest;
+
+    /**
+     * Ids of the requests waiting for their callbacks, and the
+     * latches they wait on.  A latch counted down with the request
+     * still in mFound means it failed.
+     */
+    private final AtomicLong mNextRequestId = new AtomicLong(1);
+    private final ConcurrentHashMap<Long, CountDownLatch> mPending =
+        new ConcurrentHashMap<Long, CountDownLatch>();
+    private final ConcurrentHashMap<Long, Boolean> mFound =
+        new ConcurrentHashMap<Long, Boolean>();
+
+    /**
+     * Receives the results of every caller's requests.
+     */
+    private final WeatherResults.Stub mWeatherResults =
+        new WeatherResults.Stub() {
+            @Override
+            public void sendResults(long requestId,
+                                    WeatherData results)
+                throws RemoteException {
+                complete(requestId, results != null);
+            }
+
+            @Override
+            public void sendError(long requestId,
+                                  String reason)
+                throws RemoteException {
+                Log.d(TAG, reason);
+                complete(requestId, false);
+            }
+
+            @Override
+            public void sendPartialResults(long requestId,
+                                           WeatherDataList results) {
+            }
+
+            @Override
+            public void sendComplete(long requestId,
+                                     int found,
+                                     List<String> errors) {
+            }
+
+            @Override
+            public void sendUpdates(WeatherDataList results) {
+            }
+
+            @Override
+            public void sendCacheUpdate(WeatherData results) {
+            }
+        };
+
+    public WeatherServiceAsyncLoadTest() {
+        super(WeatherServiceAsync.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalWeatherServer(SERVER_LATENCY);
+        WeatherWebService.setWebServiceUrl(mServer.getUrl());
+        mWeatherRequest =
+            WeatherRequest.Stub.asInterface(bindService(WeatherServiceAsync.makeIntent(getContext())));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WeatherWebService.setWebServiceUrl(null);
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testLoad() throws Exception {
+        final LoadGenerator.Caller caller = new LoadGenerator.Caller() {
+                @Override
+                public boolean call(String location) throws Exception {
+                    final long requestId = mNextRequestId.getAndIncrement();
+                    final CountDownLatch done = new CountDownLatch(1);
+                    mPending.put(requestId, done);
+                    mWeatherRequest.getCurrentWeather(requestId,
+                                                      SystemClock.elapsedRealtime()
+                                                      + TIMEOUT,
+                                                      location,
+                                                      mWeatherResults);
+                    final boolean answered =
+                        done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    mPending.remove(requestId);
+                    return answered
+                        && mFound.remove(requestId) != null;
+                }
+            };
+
+        // Names unique to this run, so nothing is cached yet.
+        final String run = "async-" + System.currentTimeMillis() + "-";
+        final List<String> hotLocations = new ArrayList<String>();
+        for (int i = 0; i < HOT_LOCATIONS; i++) {
+            hotLocations.add(run + "hot-" + i);
+            assertTrue(caller.call(hotLocations.get(i)));
+        }
+
+        for (int callers : CALLERS)
+            for (double hitRatio : HIT_RATIOS) {
+                final long upstream = mServer.getRequestCount();
+                final LoadGenerator.Report report =
+                    LoadGenerator.run("WeatherRequest",
+                                      caller,
+                                      callers,
+                                      REQUESTS_PER_CALLER,
+                                      hitRatio,
+                                      hotLocations,
+                                      run + "miss-" + callers + "-" + hitRatio + "-");
+                Log.i(TAG, report + " upstream="
+                      + (mServer.getRequestCount() - upstream));
+                assertEquals(0, report.mFailures);
+            }
+    }
+
+    /**
+     * Wake up the caller waiting for @a requestId.
+     */
+    private void complete(long requestId, boolean found) {
+        if (found)
+            mFound.put(requestId, Boolean.TRUE);
+        final CountDownLatch done = mPending.get(requestId);
+        if (done != null)
+            done.countDown();
+    }
+}
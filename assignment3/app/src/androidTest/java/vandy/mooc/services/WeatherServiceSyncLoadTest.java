@@ -0,0 +1,96 @@
+package vandy.mooc.services;
+
+import android.os.SystemClock;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import vandy.mooc.aidl.WeatherCall;
+import vandy.mooc.utils.LocalWeatherServer;
+import vandy.mooc.utils.WeatherWebService;
+
+/**
+ * Load test of WeatherServiceSync: concurrent callers make two-way
+ * WeatherCall.getCurrentWeather() calls against a LocalWeatherServer,
+ * with several mixes of cache hits and misses, and the throughput and
+ * latency percentiles of each run are logged.  The service is hosted
+ * in the test's process, so calls skip the marshaling a real client
+ * in another process pays for.
+ */
+public class WeatherServiceSyncLoadTest extends ServiceTestCase<WeatherServiceSync> {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Shape of the load.
+     */
+    private static final long SERVER_LATENCY = 10;
+    private static final int[] CALLERS = { 1, 8 };
+    private static final double[] HIT_RATIOS = { 1.0, 0.9, 0.5 };
+    private static final int REQUESTS_PER_CALLER = 50;
+    private static final int HOT_LOCATIONS = 16;
+    private static final long TIMEOUT = 10000;
+
+    private LocalWeatherServer mServer;
+    private WeatherCall mWeatherCall;
+
+    public WeatherServiceSyncLoadTest() {
+        super(WeatherServiceSync.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalWeatherServer(SERVER_LATENCY);
+        WeatherWebService.setWebServiceUrl(mServer.getUrl());
+        mWeatherCall =
+            WeatherCall.Stub.asInterface(bindService(WeatherServiceSync.makeIntent(getContext())));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WeatherWebService.setWebServiceUrl(null);
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testLoad() throws Exception {
+        final LoadGenerator.Caller caller = new LoadGenerator.Caller() {
+                @Override
+                public boolean call(String location) throws Exception {
+                    return mWeatherCall.getCurrentWeather(location,
+                                                          new ArrayList<String>(1),
+                                                          SystemClock.elapsedRealtime()
+                                                          + TIMEOUT) != null;
+                }
+            };
+
+        // Names unique to this run, so nothing is cached yet.
+        final String run = "sync-" + System.currentTimeMillis() + "-";
+        final List<String> hotLocations = new ArrayList<String>();
+        for (int i = 0; i < HOT_LOCATIONS; i++) {
+            hotLocations.add(run + "hot-" + i);
+            assertTrue(caller.call(hotLocations.get(i)));
+        }
+
+        for (int callers : CALLERS)
+            for (double hitRatio : HIT_RATIOS) {
+                final long upstream = mServer.getRequestCount();
+                final LoadGenerator.Report report =
+                    LoadGenerator.run("WeatherCall",
+                                      caller,
+                                      callers,
+                                      REQUESTS_PER_CALLER,
+                                      hitRatio,
+                                      hotLocations,
+                                      run + "miss-" + callers + "-" + hitRatio + "-");
+                Log.i(TAG, report + " upstream="
+                      + (mServer.getRequestCount() - upstream));
+                assertEquals(0, report.mFailures);
+            }
+    }
+}
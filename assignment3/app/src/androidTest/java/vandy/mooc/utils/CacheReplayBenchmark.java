@@ -0,0 +1,126 @@
+package vandy.mooc.utils;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays location traces through WeatherWebService.Cache and reports
+ * the hit ratio of each admission policy.  The traces are synthetic
+ * Zipfian ones, with and without scans of one-off locations mixed
+ * in, but replay() accepts any recorded trace as well.
+ */
+public class CacheReplayBenchmark extends TestCase {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Shape of the synthetic traces.
+     */
+    private static final int CACHE_SIZE = 256;
+    private static final int LOCATIONS = 10000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    private static final int REQUESTS = 200000;
+    private static final int SCAN_EVERY = 2000;
+    private static final int SCAN_LENGTH = 500;
+    private static final long SEED = 42;
+
+    /**
+     * Replay a Zipfian trace.
+     */
+    public void testZipfian() {
+        final List<String> trace = zipfianTrace(0, 0);
+
+        final double lru = replay(trace, null);
+        final double tinyLfu = replay(trace,
+                                      new TinyLfuAdmissionPolicy<String>(CACHE_SIZE));
+        report("zipfian", lru, tinyLfu);
+    }
+
+    /**
+     * Replay a Zipfian trace interrupted by scans of one-off
+     * locations, which flush popular locations out of a plain LRU.
+     */
+    public void testZipfianWithScans() {
+        final List<String> trace = zipfianTrace(SCAN_EVERY, SCAN_LENGTH);
+
+        final double lru = replay(trace, null);
+        final double tinyLfu = replay(trace,
+                                      new TinyLfuAdmissionPolicy<String>(CACHE_SIZE));
+        report("zipfian+scans", lru, tinyLfu);
+
+        assertTrue("TinyLFU should beat LRU when scans are mixed in",
+                   tinyLfu > lru);
+    }
+
+    /**
+     * Feed @a trace through a cache using @a admissionPolicy (null
+     * for plain LRU), caching every miss.
+     *
+     * @return The hit ratio.
+     */
+    public static double replay(List<String> trace,
+                                WeatherWebService.Cache.AdmissionPolicy<String> admissionPolicy) {
+        // Entries never expire during a replay, so only the eviction
+        // and admission decisions are measured.
+        final WeatherWebService.Cache<String, String> cache =
+            new WeatherWebService.Cache<String, String>(Integer.MAX_VALUE,
+                                                        Integer.MAX_VALUE,
+                                                        CACHE_SIZE,
+                                                        null,
+                                                        null,
+                                                        admissionPolicy);
+        for (String location : trace)
+            if (cache.get(location) == null)
+                cache.put(location, location);
+
+        return (double) cache.getHitCount() / trace.size();
+    }
+
+    /**
+     * @return A trace of REQUESTS Zipf-distributed locations, with a
+     *         scan of @a scanLength never-repeated locations inserted
+     *         every @a scanEvery requests (none if 0).
+     */
+    private static List<String> zipfianTrace(int scanEvery,
+                                             int scanLength) {
+        final double[] cdf = new double[LOCATIONS];
+        double sum = 0;
+        for (int i = 0; i < LOCATIONS; i++) {
+            sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+
+        final Random random = new Random(SEED);
+        final List<String> trace = new ArrayList<String>();
+        int oneOff = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            if (scanEvery > 0 && i % scanEvery == 0)
+                for (int j = 0; j < scanLength; j++)
+                    trace.add("scan-" + oneOff++);
+
+            int rank = Arrays.binarySearch(cdf,
+                                           random.nextDouble() * sum);
+            if (rank < 0)
+                rank = -rank - 1;
+            trace.add("city-" + rank);
+        }
+        return trace;
+    }
+
+    private void report(String trace,
+                        double lru,
+                        double tinyLfu) {
+        Log.i(TAG, String.format("%s: LRU hit ratio %.4f, TinyLFU hit ratio %.4f",
+                                 trace,
+                                 lru,
+                                 tinyLfu));
+    }
+}
@@ -0,0 +1,489 @@
+package vandy.mooc.utils;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the Open Weather Map web service, listening on the
+ * loopback interface, so WeatherWebService can be exercised without
+ * the network.  Point it at the server with
+ * WeatherWebService.setWebServiceUrl(server.getUrl()).
+ *
+ * Every location is known, and gets a city id of its own the first
+ * time it's asked for, except those starting with UNKNOWN_PREFIX,
+ * which are answered with 404.  Each answer is delayed by a fixed
+ * latency, standing in for the real service's.  Connections are kept
+ * alive unless the client asks otherwise, and bodies are sent with a
+ * Content-Length, but either can be changed to exercise clients.
+ * Bodies are gzipped for clients that accept it.
+ *
+ * Each city keeps the observation it was first given until
+ * updateObservations() replaces it.  Answers carry an ETag, a
+ * Last-Modified naming the observation and a ten minute max-age, and
+ * a request whose If-None-Match still names it is answered with 304.
+ */
+public class LocalWeatherServer implements Closeable {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final static String TAG = LocalWeatherServer.class.getSimpleName();
+
+    /**
+     * Locations starting with this aren't found.
+     */
+    public final static String UNKNOWN_PREFIX = "unknown";
+
+    /**
+     * Number of milliseconds each answer is delayed.
+     */
+    private final long mLatency;
+
+    /**
+     * Whether connections are kept alive, and whether bodies are sent
+     * in chunked transfer encoding.
+     */
+    private volatile boolean mKeepAlive = true;
+    private volatile boolean mChunked;
+
+    /**
+     * Number of milliseconds between the bytes of each answer, or 0
+     * to send each answer in one write.
+     */
+    private volatile long mTrickleDelay;
+
+    /**
+     * Number of bytes in each chunk of a chunked body.
+     */
+    private final static int CHUNK_SIZE = 100;
+
+    private final ServerSocket mServerSocket;
+
+    /**
+     * Runs the acceptor and one thread per connection.
+     */
+    private final ExecutorService mExecutor =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * City ids handed out so far, by location and by id.
+     */
+    private final Map<String, Long> mCityIds =
+        new ConcurrentHashMap<String, Long>();
+    private final Map<Long, String> mCityNames =
+        new ConcurrentHashMap<Long, String>();
+    private final AtomicLong mNextCityId = new AtomicLong(1000);
+
+    /**
+     * Time of each city's current observation, in seconds since the
+     * epoch.
+     */
+    private final ConcurrentHashMap<Long, Long> mObservations =
+        new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * The connections currently open.
+     */
+    private final Set<Socket> mSockets =
+        Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    /**
+     * Metrics.
+     */
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mConnectionCount = new AtomicLong();
+    private final AtomicLong mNotModifiedCount = new AtomicLong();
+
+    /**
+     * Constructor starts the server on an ephemeral port.
+     *
+     * @param latency Number of milliseconds each answer is delayed.
+     */
+    public LocalWeatherServer(long latency) throws IOException {
+        mLatency = latency;
+        mServerSocket = new ServerSocket(0,
+                                         50,
+                                         InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    accept();
+                }
+            });
+    }
+
+    /**
+     * @return The URL to pass to WeatherWebService.setWebServiceUrl().
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort()
+            + "/data/2.5/weather?units=imperial&";
+    }
+
+    /**
+     * Close each connection after its first answer if @a keepAlive is
+     * false.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Send bodies in chunked transfer encoding if @a chunked is true.
+     */
+    public void setChunked(boolean chunked) {
+        mChunked = chunked;
+    }
+
+    /**
+     * Send answers one byte at a time, @a delay milliseconds apart,
+     * as a slow or congested server does, or all at once if @a delay
+     * is 0.
+     */
+    public void setTrickleDelay(long delay) {
+        mTrickleDelay = delay;
+    }
+
+    /**
+     * Give every city a new observation, later than its last one.
+     */
+    public void updateObservations() {
+        final long now = System.currentTimeMillis() / 1000;
+        for (Map.Entry<Long, Long> observation : mObservations.entrySet())
+            observation.setValue(Math.max(now, observation.getValue() + 1));
+    }
+
+    /**
+     * @return The number of requests answered with 304.
+     */
+    public long getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    /**
+     * @return The number of requests answered.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return The number of connections accepted.
+     */
+    public long getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Close every open connection, as a server does with idle ones.
+     */
+    public void dropConnections() {
+        for (Socket socket : mSockets)
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        dropConnections();
+        mExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mSockets.add(socket);
+                mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+            }
+        } catch (IOException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * Answer the requests on @a socket until the client closes it or
+     * asks for it to be closed.
+     */
+    private void serve(Socket socket) {
+        try {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            boolean keepAlive = true;
+            while (keepAlive) {
+                final String requestLine = readLine(in);
+                if (requestLine == null)
+                    break;
+                final Map<String, String> headers = new HashMap<String, String>();
+                for (String line = readLine(in);
+                     line != null && line.length() > 0;
+                     line = readLine(in)) {
+                    final int colon = line.indexOf(':');
+                    if (colon > 0)
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                    line.substring(colon + 1).trim());
+                }
+                keepAlive = mKeepAlive
+                    && !"close".equalsIgnoreCase(headers.get("connection"))
+                    && requestLine.endsWith("HTTP/1.1");
+
+                mRequestCount.incrementAndGet();
+                if (mLatency > 0)
+                    Thread.sleep(mLatency);
+                respond(out,
+                        requestLine,
+                        headers.containsKey("accept-encoding")
+                        && headers.get("accept-encoding").contains("gzip"),
+                        headers.get("if-none-match"),
+                        keepAlive);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Connection dropped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Closed.
+        } finally {
+            mSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Write the answer to @a requestLine, e.g., "GET
+     * /data/2.5/weather?units=imperial&q=nashville HTTP/1.1", gzipping
+     * its body if @a gzip is true, or with 304 if @a ifNoneMatch is
+     * the ETag of the current observation.
+     */
+    private void respond(OutputStream out,
+                         String requestLine,
+                         boolean gzip,
+                         String ifNoneMatch,
+                         boolean keepAlive) throws IOException {
+        final Map<String, String> query = parseQuery(requestLine);
+
+        String name = null;
+        long cityId = 0;
+        if (query.containsKey("id")) {
+            cityId = Long.parseLong(query.get("id"));
+            name = mCityNames.get(cityId);
+        } else if (query.containsKey("q")
+                   && !query.get("q").startsWith(UNKNOWN_PREFIX)) {
+            name = query.get("q");
+            cityId = cityIdOf(name);
+        }
+
+        if (name == null)
+            write(out,
+                  "404 Not Found",
+                  "",
+                  "{\"cod\":\"404\",\"message\":\"city not found\"}",
+                  gzip,
+                  keepAlive);
+        else {
+            final long dt = observationOf(cityId);
+            final String eTag = "\"" + cityId + "-" + dt + "\"";
+            final String validators = "ETag: " + eTag + "\r\n"
+                + "Last-Modified: " + httpDate(dt) + "\r\n"
+                + "Cache-Control: max-age=600\r\n";
+            if (eTag.equals(ifNoneMatch)) {
+                mNotModifiedCount.incrementAndGet();
+                final String head = "HTTP/1.1 304 Not Modified\r\n"
+                    + validators
+                    + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                    + "\r\n";
+                out.write(head.getBytes("US-ASCII"));
+                out.flush();
+            } else
+                write(out,
+                      "200 OK",
+                      validators,
+                      weatherJson(cityId, name, dt),
+                      gzip,
+                      keepAlive);
+        }
+    }
+
+    private long cityIdOf(String name) {
+        synchronized (mCityIds) {
+            Long cityId = mCityIds.get(name);
+            if (cityId == null) {
+                cityId = mNextCityId.getAndIncrement();
+                mCityIds.put(name, cityId);
+                mCityNames.put(cityId, name);
+            }
+            return cityId;
+        }
+    }
+
+    /**
+     * @return The time of the current observation of @a cityId, in
+     *         seconds since the epoch.
+     */
+    private long observationOf(long cityId) {
+        Long dt = mObservations.get(cityId);
+        if (dt == null) {
+            dt = System.currentTimeMillis() / 1000;
+            final Long previous = mObservations.putIfAbsent(cityId, dt);
+            if (previous != null)
+                dt = previous;
+        }
+        return dt;
+    }
+
+    private static String httpDate(long dt) {
+        final SimpleDateFormat format =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(dt * 1000));
+    }
+
+    /**
+     * @return Weather for @a name in the web service's format,
+     *         observed at @a dt.
+     */
+    private static String weatherJson(long cityId, String name, long dt) {
+        return "{\"coord\":{\"lon\":-86.78,\"lat\":36.17},"
+            + "\"sys\":{\"message\":0.0138,\"country\":\"US\","
+            + "\"sunrise\":1431427373,\"sunset\":1431477841},"
+            + "\"weather\":[{\"id\":802,\"main\":\"Clouds\","
+            + "\"description\":\"scattered clouds\",\"icon\":\"03d\"}],"
+            + "\"base\":\"stations\","
+            + "\"main\":{\"temp\":" + (50 + cityId % 40) + ".5,"
+            + "\"pressure\":1010.71,\"humidity\":76},"
+            + "\"wind\":{\"speed\":2.42,\"deg\":310.002},"
+            + "\"clouds\":{\"all\":36},"
+            + "\"dt\":" + dt + ","
+            + "\"id\":" + cityId + ","
+            + "\"name\":\"" + name.replace("\"", "") + "\","
+            + "\"cod\":200}";
+    }
+
+    private void write(OutputStream out,
+                       String status,
+                       String headers,
+                       String body,
+                       boolean gzip,
+                       boolean keepAlive) throws IOException {
+        final boolean chunked = mChunked;
+        byte[] bytes = body.getBytes("UTF-8");
+        if (gzip) {
+            final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            final GZIPOutputStream gzipOut = new GZIPOutputStream(gzipped);
+            gzipOut.write(bytes);
+            gzipOut.close();
+            bytes = gzipped.toByteArray();
+        }
+        final String head = "HTTP/1.1 " + status + "\r\n"
+            + "Content-Type: application/json; charset=utf-8\r\n"
+            + (gzip ? "Content-Encoding: gzip\r\n" : "")
+            + headers
+            + (chunked
+               ? "Transfer-Encoding: chunked\r\n"
+               : "Content-Length: " + bytes.length + "\r\n")
+            + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+            + "\r\n";
+        // One write, so the body isn't held back by Nagle's
+        // algorithm waiting for the head to be acknowledged.
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(head.getBytes("US-ASCII"));
+        if (chunked) {
+            for (int i = 0; i < bytes.length; i += CHUNK_SIZE) {
+                final int length = Math.min(CHUNK_SIZE, bytes.length - i);
+                response.write((Integer.toHexString(length) + "\r\n").getBytes("US-ASCII"));
+                response.write(bytes, i, length);
+                response.write("\r\n".getBytes("US-ASCII"));
+            }
+            response.write("0\r\n\r\n".getBytes("US-ASCII"));
+        } else
+            response.write(bytes);
+        final long trickleDelay = mTrickleDelay;
+        if (trickleDelay > 0)
+            for (byte b : response.toByteArray()) {
+                out.write(b);
+                out.flush();
+                try {
+                    Thread.sleep(trickleDelay);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        else
+            response.writeTo(out);
+        out.flush();
+    }
+
+    private static Map<String, String> parseQuery(String requestLine)
+        throws IOException {
+        final Map<String, String> query = new HashMap<String, String>();
+        final String[] parts = requestLine.split(" ");
+        final int start = parts.length > 1 ? parts[1].indexOf('?') : -1;
+        if (start < 0)
+            return query;
+        for (String parameter : parts[1].substring(start + 1).split("&")) {
+            final int equals = parameter.indexOf('=');
+            if (equals > 0)
+                query.put(parameter.substring(0, equals),
+                          URLDecoder.decode(parameter.substring(equals + 1),
+                                            "UTF-8"));
+        }
+        return query;
+    }
+
+    /**
+     * @return A line of @a in without its line break, or null at the
+     *         end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n')
+            if (c != '\r')
+                line.write(c);
+        if (c == -1 && line.size() == 0)
+            return null;
+        return line.toString("US-ASCII");
+    }
+}
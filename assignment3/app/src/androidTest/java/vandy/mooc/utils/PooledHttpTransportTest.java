@@ -0,0 +1,440 @@
+package vandy.mooc.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import vandy.mooc.aidl.WeatherData;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests PooledHttpTransport against a LocalWeatherServer, and compares
+ * WeatherWebService's miss latency over it with that over
+ * UrlConnectionTransport.
+ */
+public class PooledHttpTransportTest extends TestCase {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    private static final int REQUESTS = 20;
+    private static final int TIMEOUT = 5000;
+    private static final Map<String, String> NO_HEADERS =
+        Collections.<String, String>emptyMap();
+
+    private LocalWeatherServer mServer;
+    private PooledHttpTransport mTransport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalWeatherServer(0);
+        mTransport = new PooledHttpTransport(4, 30000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTransport.evictAll();
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Sequential requests should share one connection.
+     */
+    public void testReusesConnections() throws Exception {
+        for (int i = 0; i < REQUESTS; i++)
+            assertTrue(get("q=nashville").startsWith("{"));
+
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(REQUESTS - 1, mTransport.getReusedCount());
+        assertEquals(1, mTransport.getIdleCount());
+    }
+
+    /**
+     * A body that wasn't read should be drained, so its connection
+     * can still be reused.
+     */
+    public void testDrainsUnreadBodies() throws Exception {
+        for (int i = 0; i < REQUESTS; i++)
+            mTransport.get(url("q=nashville"),
+                           NO_HEADERS,
+                           TIMEOUT,
+                           TIMEOUT).close();
+
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testChunkedBodies() throws Exception {
+        mServer.setChunked(true);
+        for (int i = 0; i < REQUESTS; i++) {
+            final String body = get("q=nashville");
+            assertTrue(body.startsWith("{") && body.endsWith("}"));
+        }
+
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /**
+     * A connection the server closes shouldn't be pooled.
+     */
+    public void testConnectionClose() throws Exception {
+        mServer.setKeepAlive(false);
+        for (int i = 0; i < REQUESTS; i++)
+            get("q=nashville");
+
+        assertEquals(REQUESTS, mServer.getConnectionCount());
+        assertEquals(0, mTransport.getReusedCount());
+        assertEquals(0, mTransport.getIdleCount());
+    }
+
+    /**
+     * A request on a pooled connection the server has since closed
+     * should be retried on a new one.
+     */
+    public void testRetriesStaleConnections() throws Exception {
+        get("q=nashville");
+        mServer.dropConnections();
+        assertTrue(get("q=nashville").startsWith("{"));
+
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    public void testNotFound() throws Exception {
+        final HttpTransport.Response response =
+            mTransport.get(url("q=" + LocalWeatherServer.UNKNOWN_PREFIX),
+                           NO_HEADERS,
+                           TIMEOUT,
+                           TIMEOUT);
+        assertEquals(404, response.getStatus());
+        response.close();
+        get("q=nashville");
+
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /**
+     * A header line longer than the transport accepts should fail
+     * the request rather than be buffered.
+     */
+    public void testLongHeaderLine() throws Exception {
+        final ServerSocket serverSocket =
+            new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final Thread server = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        try {
+                            final OutputStream out = socket.getOutputStream();
+                            out.write("HTTP/1.1 200 OK\r\nX-Long: ".getBytes("ISO-8859-1"));
+                            out.write(new byte[64 * 1024]);
+                            out.write("\r\n\r\n".getBytes("ISO-8859-1"));
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // The client hung up.
+                    }
+                }
+            };
+        server.setDaemon(true);
+        server.start();
+        try {
+            mTransport.get(new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/"),
+                           NO_HEADERS,
+                           TIMEOUT,
+                           TIMEOUT).close();
+            fail("A 64KB header line should be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Line longer than"));
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * While an http proxy is configured, requests should go through
+     * it rather than straight to the host.
+     */
+    public void testProxy() throws Exception {
+        System.setProperty("http.proxyHost", "127.0.0.1");
+        System.setProperty("http.proxyPort",
+                           String.valueOf(new URL(mServer.getUrl()).getPort()));
+        try {
+            final HttpTransport.Response response =
+                mTransport.get(new URL("http://weather.invalid/data/2.5/weather?q=nashville"),
+                               NO_HEADERS,
+                               TIMEOUT,
+                               TIMEOUT);
+            assertEquals(200, response.getStatus());
+            response.close();
+
+            assertEquals(1, mServer.getRequestCount());
+            assertEquals(0, mTransport.getRequestCount());
+        } finally {
+            System.clearProperty("http.proxyHost");
+            System.clearProperty("http.proxyPort");
+        }
+    }
+
+    /**
+     * Aborting a thread's request should fail it at once rather than
+     * when the server answers.
+     */
+    public void testAbort() throws Exception {
+        final LocalWeatherServer slowServer = new LocalWeatherServer(TIMEOUT);
+        try {
+            final IOException[] failure = new IOException[1];
+            final Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            mTransport.get(new URL(slowServer.getUrl() + "q=nashville"),
+                                           NO_HEADERS,
+                                           TIMEOUT,
+                                           TIMEOUT).close();
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+            thread.start();
+            Thread.sleep(200);
+            mTransport.abort(thread);
+            thread.join(TIMEOUT / 2);
+
+            assertFalse(thread.isAlive());
+            assertTrue(failure[0] instanceof InterruptedIOException);
+            assertEquals(0, mTransport.getIdleCount());
+        } finally {
+            slowServer.close();
+        }
+    }
+
+    /**
+     * Cancelling an AbortableTask should abort the fetch it's blocked
+     * in, and report it cancelled.
+     */
+    public void testCancelAbortsFetch() throws Exception {
+        final LocalWeatherServer slowServer = new LocalWeatherServer(TIMEOUT);
+        WeatherWebService.setWebServiceUrl(slowServer.getUrl());
+        WeatherWebService.setTransport(mTransport);
+        try {
+            final String location = "cancel-" + System.nanoTime();
+            final WeatherWebService.AbortableTask<WeatherData> task =
+                new WeatherWebService.AbortableTask<WeatherData>(new Callable<WeatherData>() {
+                        @Override
+                        public WeatherData call() throws Exception {
+                            return WeatherWebService.lookup(location);
+                        }
+                    });
+            final Thread thread = new Thread(task);
+            thread.start();
+            Thread.sleep(200);
+            assertTrue(task.cancel(true));
+            thread.join(TIMEOUT / 2);
+
+            assertFalse(thread.isAlive());
+        } finally {
+            WeatherWebService.setWebServiceUrl(null);
+            WeatherWebService.setTransport(null);
+            slowServer.close();
+        }
+    }
+
+    /**
+     * Compare the latency of WeatherWebService misses over each
+     * transport.
+     */
+    public void testWeatherWebService() throws Exception {
+        WeatherWebService.setWebServiceUrl(mServer.getUrl());
+        try {
+            final double unpooled =
+                averageMissTime(new UrlConnectionTransport(), "unpooled-");
+            final long connections = mServer.getConnectionCount();
+            final double pooled = averageMissTime(mTransport, "pooled-");
+
+            Log.i(TAG, String.format("average miss: unpooled %.2fms,"
+                                     + " pooled %.2fms; %s",
+                                     unpooled,
+                                     pooled,
+                                     mTransport));
+            assertEquals(1, mServer.getConnectionCount() - connections);
+        } finally {
+            WeatherWebService.setWebServiceUrl(null);
+            WeatherWebService.setTransport(null);
+        }
+    }
+
+    /**
+     * WeatherWebService should ask for gzipped bodies and parse them
+     * as they're decompressed, and the gzip trailer left unread by
+     * the parser shouldn't cost the connection.
+     */
+    public void testGzippedBodies() throws Exception {
+        WeatherWebService.setWebServiceUrl(mServer.getUrl());
+        WeatherWebService.setTransport(mTransport);
+        try {
+            final long wire = WeatherWebService.getBytesOnWire();
+            final long parsed = WeatherWebService.getBytesParsed();
+            final String run = "gzip-" + System.nanoTime() + "-";
+            for (int i = 0; i < REQUESTS; i++)
+                assertEquals(run + i,
+                             WeatherWebService.lookup(run + i).getmName());
+
+            final long wireBytes = WeatherWebService.getBytesOnWire() - wire;
+            final long parsedBytes = WeatherWebService.getBytesParsed() - parsed;
+            Log.i(TAG, String.format("%d bytes on the wire for %d bytes"
+                                     + " parsed (%.0f%%)",
+                                     wireBytes,
+                                     parsedBytes,
+                                     100.0 * wireBytes / parsedBytes));
+            assertTrue(wireBytes > 0 && wireBytes < parsedBytes);
+            assertEquals(1, mServer.getConnectionCount());
+        } finally {
+            WeatherWebService.setWebServiceUrl(null);
+            WeatherWebService.setTransport(null);
+        }
+    }
+
+    /**
+     * A conditional request for an unchanged observation should be
+     * answered with 304 and no body, keeping the connection.
+     */
+    public void testNotModified() throws Exception {
+        HttpTransport.Response response =
+            mTransport.get(url("q=nashville"), NO_HEADERS, TIMEOUT, TIMEOUT);
+        final String eTag = response.getHeader("etag");
+        response.close();
+        assertNotNull(eTag);
+
+        final Map<String, String> conditional =
+            Collections.singletonMap("If-None-Match", eTag);
+        response = mTransport.get(url("q=nashville"), conditional, TIMEOUT, TIMEOUT);
+        assertEquals(304, response.getStatus());
+        assertEquals(-1, response.getBody().read());
+        response.close();
+
+        mServer.updateObservations();
+        response = mTransport.get(url("q=nashville"), conditional, TIMEOUT, TIMEOUT);
+        assertEquals(200, response.getStatus());
+        response.close();
+
+        assertEquals(1, mServer.getNotModifiedCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /**
+     * A response trickling in, each byte well within the read
+     * timeout, shouldn't keep a lookup running past its deadline.
+     */
+    public void testDeadlineBoundsSlowResponse() throws Exception {
+        mServer.setTrickleDelay(20);
+        WeatherWebService.setWebServiceUrl(mServer.getUrl());
+        WeatherWebService.setTransport(mTransport);
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                WeatherWebService.lookup("trickle-" + System.nanoTime(),
+                                         start + 500);
+                fail("Lookup should miss its deadline");
+            } catch (WeatherLookupException e) {
+                assertEquals(WeatherLookupException.Reason.DEADLINE_EXCEEDED,
+                             e.getReason());
+            }
+            assertTrue(SystemClock.elapsedRealtime() - start < TIMEOUT / 2);
+        } finally {
+            mServer.setTrickleDelay(0);
+            WeatherWebService.setWebServiceUrl(null);
+            WeatherWebService.setTransport(null);
+        }
+    }
+
+    /**
+     * Once cached weather expires, WeatherWebService should refresh
+     * it with a conditional request, and a 304 should keep the same
+     * WeatherData fresh again.
+     */
+    public void testRevalidation() throws Exception {
+        WeatherWebService.setWebServiceUrl(mServer.getUrl());
+        WeatherWebService.setTransport(mTransport);
+        try {
+            final long conditional = WeatherWebService.getConditionalRequestCount();
+            final long notModified = WeatherWebService.getNotModifiedCount();
+            final String location = "revalidate-" + System.nanoTime();
+            final WeatherData weatherData = WeatherWebService.lookup(location);
+
+            WeatherWebService.expire(location);
+            // The stale weather is returned while it's refreshed in
+            // the background.
+            assertSame(weatherData, WeatherWebService.lookup(location));
+            final long end = System.currentTimeMillis() + TIMEOUT;
+            while (WeatherWebService.getNotModifiedCount() == notModified
+                   && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+
+            assertEquals(1, WeatherWebService.getConditionalRequestCount() - conditional);
+            assertEquals(1, WeatherWebService.getNotModifiedCount() - notModified);
+            assertEquals(1, mServer.getNotModifiedCount());
+            final long requests = mServer.getRequestCount();
+            assertSame(weatherData, WeatherWebService.lookup(location));
+            assertEquals(requests, mServer.getRequestCount());
+        } finally {
+            WeatherWebService.setWebServiceUrl(null);
+            WeatherWebService.setTransport(null);
+        }
+    }
+
+    /**
+     * @return The average milliseconds WeatherWebService took to look
+     *         up a location it hadn't seen before over @a transport.
+     */
+    private double averageMissTime(HttpTransport transport,
+                                   String prefix) throws Exception {
+        WeatherWebService.setTransport(transport);
+        final String run = prefix + System.nanoTime() + "-";
+        final long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++)
+            assertNotNull(WeatherWebService.lookup(run + i));
+        return (System.nanoTime() - start) / 1e6 / REQUESTS;
+    }
+
+    private URL url(String query) throws IOException {
+        return new URL(mServer.getUrl() + query);
+    }
+
+    /**
+     * @return The body of the response to a GET of @a query.
+     */
+    private String get(String query) throws IOException {
+        final HttpTransport.Response response =
+            mTransport.get(url(query), NO_HEADERS, TIMEOUT, TIMEOUT);
+        try {
+            assertEquals(200, response.getStatus());
+            final InputStream in = response.getBody();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[256];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                body.write(buffer, 0, n);
+            return body.toString("UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+}
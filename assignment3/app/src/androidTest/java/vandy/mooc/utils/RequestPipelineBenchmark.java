@@ -0,0 +1,233 @@
+package vandy.mooc.utils;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the throughput of sync lookups run through a
+ * RequestPipeline against the AsyncTask serial executor they used to
+ * run on.  The binder call is simulated by a sleep, so only the
+ * scheduling is measured.
+ */
+public class RequestPipelineBenchmark extends TestCase {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Shape of the workload.
+     */
+    private static final int REQUESTS = 200;
+    private static final long CALL_TIME = 20;
+    private static final int PARALLELISM = 4;
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * Delivers the pipeline's results, standing in for the UI Thread.
+     */
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Compare the throughput of the pipeline with that of the serial
+     * executor, and check the pipeline delivers results in order.
+     */
+    public void testThroughput() throws Exception {
+        final double serial = runSerial();
+        final double pipelined = runPipeline();
+
+        Log.i(TAG, String.format("serial executor: %.1f requests/s,"
+                                 + " pipeline of %d: %.1f requests/s"
+                                 + " (%.1fx)",
+                                 serial,
+                                 PARALLELISM,
+                                 pipelined,
+                                 pipelined / serial));
+        assertTrue("The pipeline should beat the serial executor",
+                   pipelined > serial);
+    }
+
+    /**
+     * Identical requests in flight at once should share one call.
+     */
+    public void testDeduplication() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final RequestPipeline<String, String> pipeline =
+            new RequestPipeline<String, String>(TAG,
+                                                PARALLELISM,
+                                                TIMEOUT,
+                                                new RequestPipeline.Call<String, String>() {
+                    @Override
+                    public String call(String request, long deadline)
+                        throws Exception {
+                        calls.incrementAndGet();
+                        Thread.sleep(CALL_TIME);
+                        return request;
+                    }
+                },
+                mHandler);
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++)
+            pipeline.submit("nashville", countDown(done, null));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(9, pipeline.getDeduplicatedCount());
+        pipeline.shutdown();
+    }
+
+    /**
+     * A cancelled request's outcome shouldn't be delivered, nor hold
+     * back those of later requests.
+     */
+    public void testCancel() throws Exception {
+        final long slowCallTime = 50 * CALL_TIME;
+        final RequestPipeline<String, String> pipeline =
+            new RequestPipeline<String, String>(TAG,
+                                                PARALLELISM,
+                                                TIMEOUT,
+                                                new RequestPipeline.Call<String, String>() {
+                    @Override
+                    public String call(String request, long deadline)
+                        throws Exception {
+                        Thread.sleep(request.equals("slow")
+                                     ? slowCallTime
+                                     : CALL_TIME);
+                        return request;
+                    }
+                },
+                mHandler);
+        final List<String> delivered =
+            Collections.synchronizedList(new ArrayList<String>());
+        final RequestPipeline<String, String>.Ticket slow =
+            pipeline.submit("slow",
+                            countDown(new CountDownLatch(1), delivered));
+        final CountDownLatch done = new CountDownLatch(1);
+        pipeline.submit("fast", countDown(done, delivered));
+        pipeline.cancel(slow);
+
+        assertTrue("Results shouldn't wait for a cancelled request",
+                   done.await(slowCallTime / 2, TimeUnit.MILLISECONDS));
+        // Give the slow call time to finish.
+        Thread.sleep(slowCallTime);
+        assertEquals(Collections.singletonList("fast"), delivered);
+        assertEquals(1, pipeline.getCancelledCount());
+        pipeline.shutdown();
+    }
+
+    /**
+     * @return The requests per second run one at a time on the serial
+     *         executor AsyncTask.execute() uses.
+     */
+    private double runSerial() throws Exception {
+        final Executor executor = AsyncTask.SERIAL_EXECUTOR;
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < REQUESTS; i++)
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(CALL_TIME);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(REQUESTS * CALL_TIME * 10,
+                              TimeUnit.MILLISECONDS));
+        return REQUESTS * 1000.0 / (SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * @return The requests per second run through a pipeline.
+     */
+    private double runPipeline() throws Exception {
+        final RequestPipeline<String, String> pipeline =
+            new RequestPipeline<String, String>(TAG,
+                                                PARALLELISM,
+                                                TIMEOUT,
+                                                new RequestPipeline.Call<String, String>() {
+                    @Override
+                    public String call(String request, long deadline)
+                        throws Exception {
+                        Thread.sleep(CALL_TIME);
+                        return request;
+                    }
+                },
+                mHandler);
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        final List<String> delivered = new ArrayList<String>();
+        final List<String> submitted = new ArrayList<String>();
+
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < REQUESTS; i++) {
+            // Distinct locations, so no request shares another's
+            // call and only the parallelism is measured.
+            final String location = "city-" + i;
+            submitted.add(location);
+            pipeline.submit(location, countDown(done, delivered));
+        }
+        assertTrue(done.await(REQUESTS * CALL_TIME * 10,
+                              TimeUnit.MILLISECONDS));
+        final double throughput =
+            REQUESTS * 1000.0 / (SystemClock.elapsedRealtime() - start);
+
+        Log.i(TAG, pipeline.toString());
+        pipeline.shutdown();
+        assertEquals("Results should be delivered in order",
+                     submitted,
+                     delivered);
+        return throughput;
+    }
+
+    /**
+     * @return A callback that records each result in @a delivered,
+     *         if it isn't null, and counts @a done down.
+     */
+    private static RequestPipeline.Callback<String, String> countDown(final CountDownLatch done,
+                                                                      final List<String> delivered) {
+        return new RequestPipeline.Callback<String, String>() {
+            @Override
+            public void onResult(String request, String result) {
+                if (delivered != null)
+                    delivered.add(result);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(String request, Exception error) {
+                fail("Request for " + request + " failed: " + error);
+            }
+        };
+    }
+}
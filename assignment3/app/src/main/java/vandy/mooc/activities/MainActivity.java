@@ -6,6 +6,9 @@ import vandy.mooc.operations.WeatherOps;
 import vandy.mooc.operations.WeatherOpsImpl;
 import vandy.mooc.utils.RetainedFragmentManager;
 import vandy.mooc.utils.Utils;
+
+import java.util.List;
+
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -167,18 +170,7 @@ public class MainActivity extends LifecycleLoggingActivity {
 
             try {
                 // display results
-                mTextView.setText(
-                        String.format(
-                                "Location: %s\n" +
-                                "Temperature: %.0fF\n" +
-                                "Humidity: %d%%\n" +
-                                "Wind speed: %.2fmph\n",
-                                result.getmName(),
-                                result.getmTemp(),
-                                result.getmHumidity(),
-                                result.getmSpeed()
-                        )
-                );
+                mTextView.setText(format(result));
             } catch (Exception e) {
                 Utils.showToast(this,
                         e.getMessage());
@@ -186,6 +178,57 @@ public class MainActivity extends LifecycleLoggingActivity {
         }
     }
 
+    /**
+     * Display the results of a multi-location lookup received so far.
+     *
+     * @param results
+     *            List of Results to be displayed.
+     */
+    public void displayResults(List<WeatherData> results) {
+        Log.d(TAG, "displayResults() for " + results.size() + " locations");
+
+        final StringBuilder text = new StringBuilder();
+        for (WeatherData result : results)
+            text.append(format(result)).append('\n');
+        mTextView.setText(text);
+    }
+
+    /**
+     * Report the end of a multi-location lookup.
+     *
+     * @param found
+     *            Number of locations whose weather was found.
+     * @param errors
+     *            Why the weather of each other location wasn't.
+     */
+    public void displayBatchComplete(int found,
+                                     List<String> errors) {
+        if (found == 0)
+            mTextView.setText("No weather data for the locations");
+        if (!errors.isEmpty())
+            Utils.showToast(this,
+                    String.format("Weather found for %d of %d locations\n%s",
+                                  found,
+                                  found + errors.size(),
+                                  errors.get(0)));
+    }
+
+    /**
+     * @return The text displayed for @a result.
+     */
+    private static String format(WeatherData result) {
+        return String.format(
+                "Location: %s\n" +
+                "Temperature: %.0fF\n" +
+                "Humidity: %d%%\n" +
+                "Wind speed: %.2fmph\n",
+                result.getmName(),
+                result.getmTemp(),
+                result.getmHumidity(),
+                result.getmSpeed()
+        );
+    }
+
     /**
      * Reset the display prior to attempting to find another location weather.
      */
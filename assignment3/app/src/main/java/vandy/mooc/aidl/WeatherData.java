@@ -37,6 +37,7 @@ public class WeatherData implements Parcelable {
      * These data members are the local variables that will store the
      * WeatherData's state
      */
+    private long mId;
     private String mName;
     private double mSpeed;
     private double mDeg;
@@ -45,9 +46,30 @@ public class WeatherData implements Parcelable {
     private long mSunrise;
     private long mSunset;
 
+    /**
+     * Constructor for weather of an unknown city id.
+     */
+    public WeatherData(String name,
+                       double speed,
+                       double deg,
+                       double temp,
+                       long humidity,
+                       long sunrise,
+                       long sunset) {
+        this(0,
+             name,
+             speed,
+             deg,
+             temp,
+             humidity,
+             sunrise,
+             sunset);
+    }
+
     /**
      * Constructor
      * 
+     * @param id The web service's id of the city
      * @param name
      * @param speed
      * @param deg
@@ -56,13 +78,15 @@ public class WeatherData implements Parcelable {
      * @param sunrise
      * @param sunset
      */
-    public WeatherData(String name,
+    public WeatherData(long id,
+                       String name,
                        double speed,
                        double deg,
                        double temp,
                        long humidity,
                        long sunrise,
                        long sunset) {
+        mId = id;
         mName = name;
         mSpeed = speed;
         mDeg = deg;
@@ -77,7 +101,8 @@ public class WeatherData implements Parcelable {
      */
     @Override
     public String toString() {
-        return "WeatherData [name=" + mName 
+        return "WeatherData [id=" + mId
+            + ", name=" + mName 
             + ", speed=" + mSpeed
             + ", deg=" + mDeg 
             + ", temp=" + mTemp 
@@ -86,6 +111,44 @@ public class WeatherData implements Parcelable {
             + ", sunset=" + mSunset + "]";
     }
 
+    /**
+     * @return True if @a object is a WeatherData with the same
+     *         fields, i.e., the weather hasn't changed.
+     */
+    @Override
+    public boolean equals(Object object) {
+        if (this == object)
+            return true;
+        if (!(object instanceof WeatherData))
+            return false;
+        final WeatherData other = (WeatherData) object;
+        return mId == other.mId
+            && (mName == null ? other.mName == null : mName.equals(other.mName))
+            && Double.compare(mSpeed, other.mSpeed) == 0
+            && Double.compare(mDeg, other.mDeg) == 0
+            && Double.compare(mTemp, other.mTemp) == 0
+            && mHumidity == other.mHumidity
+            && mSunrise == other.mSunrise
+            && mSunset == other.mSunset;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = hash(mId);
+        hash = 31 * hash + (mName == null ? 0 : mName.hashCode());
+        hash = 31 * hash + hash(Double.doubleToLongBits(mSpeed));
+        hash = 31 * hash + hash(Double.doubleToLongBits(mDeg));
+        hash = 31 * hash + hash(Double.doubleToLongBits(mTemp));
+        hash = 31 * hash + hash(mHumidity);
+        hash = 31 * hash + hash(mSunrise);
+        hash = 31 * hash + hash(mSunset);
+        return hash;
+    }
+
+    private static int hash(long value) {
+        return (int) (value ^ (value >>> 32));
+    }
+
     /*
      * BELOW THIS is related to Parcelable Interface.
      */
@@ -104,6 +167,7 @@ public class WeatherData implements Parcelable {
      */
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mId);
         dest.writeString(mName);
         dest.writeDouble(mSpeed);
         dest.writeDouble(mDeg);
@@ -123,6 +187,7 @@ public class WeatherData implements Parcelable {
      * @param in
      */
     private WeatherData(Parcel in) {
+        mId = in.readLong();
         mName = in.readString();
         mSpeed = in.readDouble();
         mDeg = in.readDouble();
@@ -149,6 +214,10 @@ public class WeatherData implements Parcelable {
             }
         };
 
+    public long getmId() {
+        return mId;
+    }
+
     public String getmName() {
         return mName;
     }
@@ -0,0 +1,189 @@
+package vandy.mooc.aidl;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * @class WeatherDataList
+ *
+ * @brief A List of WeatherData that is marshaled in bulk, to keep
+ *        binder transactions of many results small and quick to
+ *        unmarshal.
+ *
+ *        Rather than one record per WeatherData, the Parcel holds a
+ *        table of the distinct names followed by one primitive array
+ *        per field, so a name shared by several entries is written
+ *        once and each field costs a single bulk copy.  On the
+ *        receiving side the WeatherData objects aren't created until
+ *        get() asks for them.  Null elements are allowed.
+ */
+public class WeatherDataList extends AbstractList<WeatherData>
+                             implements Parcelable, RandomAccess {
+    /**
+     * Name index of a null name, and of a null element.
+     */
+    private static final int NULL_NAME = -1;
+    private static final int NULL_ELEMENT = -2;
+
+    /**
+     * The list being sent, or null if this one was unmarshaled.
+     */
+    private final List<WeatherData> mList;
+
+    /*
+     * The columns of an unmarshaled list, and the WeatherData created
+     * from them so far.
+     */
+    private String[] mNames;
+    private int[] mNameIndexes;
+    private long[] mIds;
+    private double[] mSpeeds;
+    private double[] mDegs;
+    private double[] mTemps;
+    private long[] mHumidities;
+    private long[] mSunrises;
+    private long[] mSunsets;
+    private WeatherData[] mViews;
+
+    /**
+     * Constructor wraps @a list, which is marshaled as is when this
+     * list is written to a Parcel.
+     */
+    public WeatherDataList(List<WeatherData> list) {
+        mList = list;
+    }
+
+    @Override
+    public int size() {
+        return mList != null ? mList.size() : mViews.length;
+    }
+
+    @Override
+    public WeatherData get(int index) {
+        if (mList != null)
+            return mList.get(index);
+
+        if (mViews[index] == null && mNameIndexes[index] != NULL_ELEMENT) {
+            final int name = mNameIndexes[index];
+            mViews[index] = new WeatherData(mIds[index],
+                                            name == NULL_NAME ? null : mNames[name],
+                                            mSpeeds[index],
+                                            mDegs[index],
+                                            mTemps[index],
+                                            mHumidities[index],
+                                            mSunrises[index],
+                                            mSunsets[index]);
+        }
+        return mViews[index];
+    }
+
+    /*
+     * BELOW THIS is related to Parcelable Interface.
+     */
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Write the name table and then the columns.
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        final int size = size();
+        final Map<String, Integer> nameTable = new HashMap<String, Integer>();
+        final String[] names = new String[size];
+        final int[] nameIndexes = new int[size];
+        final long[] ids = new long[size];
+        final double[] speeds = new double[size];
+        final double[] degs = new double[size];
+        final double[] temps = new double[size];
+        final long[] humidities = new long[size];
+        final long[] sunrises = new long[size];
+        final long[] sunsets = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            final WeatherData weatherData = get(i);
+            if (weatherData == null) {
+                nameIndexes[i] = NULL_ELEMENT;
+                continue;
+            }
+
+            final String name = weatherData.getmName();
+            if (name == null)
+                nameIndexes[i] = NULL_NAME;
+            else {
+                Integer index = nameTable.get(name);
+                if (index == null) {
+                    index = nameTable.size();
+                    nameTable.put(name, index);
+                    names[index] = name;
+                }
+                nameIndexes[i] = index;
+            }
+            ids[i] = weatherData.getmId();
+            speeds[i] = weatherData.getmSpeed();
+            degs[i] = weatherData.getmDeg();
+            temps[i] = weatherData.getmTemp();
+            humidities[i] = weatherData.getmHumidity();
+            sunrises[i] = weatherData.getmSunrise();
+            sunsets[i] = weatherData.getmSunset();
+        }
+
+        dest.writeInt(nameTable.size());
+        for (int i = 0; i < nameTable.size(); i++)
+            dest.writeString(names[i]);
+        dest.writeIntArray(nameIndexes);
+        dest.writeLongArray(ids);
+        dest.writeDoubleArray(speeds);
+        dest.writeDoubleArray(degs);
+        dest.writeDoubleArray(temps);
+        dest.writeLongArray(humidities);
+        dest.writeLongArray(sunrises);
+        dest.writeLongArray(sunsets);
+    }
+
+    /**
+     * Private constructor provided for the CREATOR interface, which
+     * reads the columns back without creating any WeatherData.
+     * <p>
+     * The order of reading in variables HAS TO MATCH the order in
+     * writeToParcel(Parcel, int)
+     */
+    private WeatherDataList(Parcel in) {
+        mList = null;
+        mNames = new String[in.readInt()];
+        for (int i = 0; i < mNames.length; i++)
+            mNames[i] = in.readString();
+        mNameIndexes = in.createIntArray();
+        mIds = in.createLongArray();
+        mSpeeds = in.createDoubleArray();
+        mDegs = in.createDoubleArray();
+        mTemps = in.createDoubleArray();
+        mHumidities = in.createLongArray();
+        mSunrises = in.createLongArray();
+        mSunsets = in.createLongArray();
+        mViews = new WeatherData[mNameIndexes.length];
+    }
+
+    /**
+     * public Parcelable.Creator for WeatherDataList.
+     */
+    public static final Parcelable.Creator<WeatherDataList> CREATOR =
+        new Parcelable.Creator<WeatherDataList>() {
+            public WeatherDataList createFromParcel(Parcel in) {
+                return new WeatherDataList(in);
+            }
+
+            public WeatherDataList[] newArray(int size) {
+                return new WeatherDataList[size];
+            }
+        };
+}
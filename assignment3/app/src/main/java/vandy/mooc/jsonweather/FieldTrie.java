@@ -0,0 +1,90 @@
+package vandy.mooc.jsonweather;
+
+import java.util.Arrays;
+
+/**
+ * @class FieldTrie
+ *
+ * @brief A char-level trie of the field names of a Json object, which
+ *        maps each name to its index in the constructor's arguments.
+ *        A name is matched a char at a time as it's read, so it never
+ *        has to be made into a String.
+ */
+public class FieldTrie {
+    /**
+     * Returned for a name that isn't in the trie.
+     */
+    public static final int NO_MATCH = -1;
+
+    /**
+     * The node every name starts from.
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * The nodes, as parallel arrays: the char leading to each node,
+     * its first child and next sibling (or -1), and the index of the
+     * name ending at it (or NO_MATCH).
+     */
+    private final char[] mLabels;
+    private final int[] mFirstChild;
+    private final int[] mNextSibling;
+    private final int[] mValues;
+
+    public FieldTrie(String... names) {
+        int capacity = 1;
+        for (String name : names)
+            capacity += name.length();
+        mLabels = new char[capacity];
+        mFirstChild = new int[capacity];
+        mNextSibling = new int[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mFirstChild, -1);
+        Arrays.fill(mNextSibling, -1);
+        Arrays.fill(mValues, NO_MATCH);
+
+        int size = 1;
+        for (int i = 0; i < names.length; i++) {
+            int node = ROOT;
+            for (int j = 0; j < names[i].length(); j++) {
+                final char c = names[i].charAt(j);
+                int child = next(node, c);
+                if (child == NO_MATCH) {
+                    child = size++;
+                    mLabels[child] = c;
+                    mNextSibling[child] = mFirstChild[node];
+                    mFirstChild[node] = child;
+                }
+                node = child;
+            }
+            if (mValues[node] != NO_MATCH)
+                throw new IllegalArgumentException("Duplicate name " + names[i]);
+            mValues[node] = i;
+        }
+    }
+
+    /**
+     * @return The node reached from @a node by @a c, or NO_MATCH if
+     *         no name continues that way.  NO_MATCH leads to
+     *         NO_MATCH.
+     */
+    public int next(int node, char c) {
+        if (node == NO_MATCH)
+            return NO_MATCH;
+        for (int child = mFirstChild[node];
+             child != -1;
+             child = mNextSibling[child])
+            if (mLabels[child] == c)
+                return child;
+        return NO_MATCH;
+    }
+
+    /**
+     * @return The index of the name ending at @a node, or NO_MATCH.
+     */
+    public int valueOf(int node) {
+        return node == NO_MATCH
+            ? NO_MATCH
+            : mValues[node];
+    }
+}
@@ -0,0 +1,519 @@
+package vandy.mooc.jsonweather;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.JsonToken;
+
+/**
+ * @class JsonFieldReader
+ *
+ * @brief Reads a UTF-8 Json stream a token at a time, like JsonReader,
+ *        but allocates as little as it can: field names are matched
+ *        against a FieldTrie as they're read rather than returned as
+ *        Strings, numbers are parsed straight from the bytes, and
+ *        skipped values are scanned past without being decoded.  Only
+ *        the Strings asked for with nextString() are allocated.
+ */
+public class JsonFieldReader implements Closeable {
+    /**
+     * What the reader is in the middle of, kept on a stack with an
+     * entry for each enclosing array or object.
+     */
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int DANGLING_NAME = 6;
+
+    /**
+     * Maximum number of significant digits, and largest power of
+     * ten, for which a double is computed exactly from its digits;
+     * any other number is handed to Double.parseDouble().
+     */
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+        1e21, 1e22
+    };
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[1024];
+    private int mPos;
+    private int mLimit;
+
+    private int[] mStack = new int[16];
+    private int mStackSize;
+
+    /**
+     * The next token if peek() has found it, else null.  The opening
+     * quote of a NAME or STRING, and the bracket of a BEGIN_ARRAY or
+     * BEGIN_OBJECT, have already been consumed.
+     */
+    private JsonToken mPeeked;
+
+    /**
+     * Reused to decode Strings and to hold numbers that aren't
+     * parsed exactly.
+     */
+    private final StringBuilder mString = new StringBuilder();
+
+    public JsonFieldReader(InputStream in) {
+        mIn = in;
+        mStack[mStackSize++] = EMPTY_DOCUMENT;
+    }
+
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        mStackSize--;
+    }
+
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        mStackSize--;
+    }
+
+    /**
+     * @return true if the current array or object has another
+     *         element.
+     */
+    public boolean hasNext() throws IOException {
+        final JsonToken token = peek();
+        return token != JsonToken.END_OBJECT
+            && token != JsonToken.END_ARRAY
+            && token != JsonToken.END_DOCUMENT;
+    }
+
+    /**
+     * Consume the next field name.
+     *
+     * @return The index of the name in @a fields, or
+     *         FieldTrie.NO_MATCH if it isn't there, in which case its
+     *         value would usually be skipped with skipValue().
+     */
+    public int nextField(FieldTrie fields) throws IOException {
+        expect(JsonToken.NAME);
+        int node = FieldTrie.ROOT;
+        for (int c = read(); c != '"'; c = read()) {
+            if (c == -1)
+                throw syntaxError("Unterminated name");
+            if (c == '\\')
+                c = readEscape();
+            else if (c >= 0x80)
+                // No field name has non-ASCII chars, so there's no
+                // need to decode the rest of this one.
+                c = -1;
+            node = c == -1
+                ? FieldTrie.NO_MATCH
+                : fields.next(node, (char) c);
+        }
+        if (nextNonWhitespace() != ':')
+            throw syntaxError("Expected ':'");
+        mStack[mStackSize - 1] = DANGLING_NAME;
+        return fields.valueOf(node);
+    }
+
+    public String nextString() throws IOException {
+        final JsonToken token = peek();
+        if (token == JsonToken.NUMBER) {
+            mPeeked = null;
+            readNumber();
+            return mString.toString();
+        }
+        expect(JsonToken.STRING);
+        mString.setLength(0);
+        for (int c = read(); c != '"'; c = read()) {
+            if (c == -1)
+                throw syntaxError("Unterminated string");
+            if (c == '\\')
+                mString.append((char) readEscape());
+            else if (c < 0x80)
+                mString.append((char) c);
+            else
+                mString.appendCodePoint(readUtf8(c));
+        }
+        return mString.toString();
+    }
+
+    public long nextLong() throws IOException {
+        if (peek() == JsonToken.STRING)
+            return Long.parseLong(nextString());
+        expect(JsonToken.NUMBER);
+        final double value = readNumber();
+        // Doubles only hold longs this small exactly.
+        if (value == (long) value && Math.abs(value) < 1e15)
+            return (long) value;
+        return Long.parseLong(mString.toString());
+    }
+
+    public double nextDouble() throws IOException {
+        if (peek() == JsonToken.STRING)
+            return Double.parseDouble(nextString());
+        expect(JsonToken.NUMBER);
+        return readNumber();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        // peek() left the literal unread.
+        final boolean value = mBuffer[mPos] == 't';
+        readLiteral(value ? "true" : "false");
+        return value;
+    }
+
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+        readLiteral("null");
+    }
+
+    /**
+     * Skip the next value, with everything nested in it, without
+     * decoding any of it.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                depth++;
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                depth++;
+                break;
+            case END_ARRAY:
+                endArray();
+                depth--;
+                break;
+            case END_OBJECT:
+                endObject();
+                depth--;
+                break;
+            case NAME:
+                mPeeked = null;
+                skipString();
+                if (nextNonWhitespace() != ':')
+                    throw syntaxError("Expected ':'");
+                mStack[mStackSize - 1] = DANGLING_NAME;
+                break;
+            case STRING:
+                mPeeked = null;
+                skipString();
+                break;
+            case END_DOCUMENT:
+                throw new IllegalStateException("Nothing left to skip");
+            default:
+                mPeeked = null;
+                skipLiteral();
+                break;
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * @return The kind of the next token, without consuming it.
+     */
+    public JsonToken peek() throws IOException {
+        if (mPeeked != null)
+            return mPeeked;
+
+        final int scope = mStack[mStackSize - 1];
+        int c;
+        switch (scope) {
+        case EMPTY_ARRAY:
+        case NONEMPTY_ARRAY:
+            mStack[mStackSize - 1] = NONEMPTY_ARRAY;
+            c = nextNonWhitespace();
+            if (c == ']')
+                return mPeeked = JsonToken.END_ARRAY;
+            if (scope == NONEMPTY_ARRAY) {
+                if (c != ',')
+                    throw syntaxError("Expected ',' or ']'");
+            } else
+                mPos--;
+            break;
+
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            c = nextNonWhitespace();
+            if (c == '}')
+                return mPeeked = JsonToken.END_OBJECT;
+            if (scope == NONEMPTY_OBJECT) {
+                if (c != ',')
+                    throw syntaxError("Expected ',' or '}'");
+                c = nextNonWhitespace();
+            }
+            if (c != '"')
+                throw syntaxError("Expected a name");
+            return mPeeked = JsonToken.NAME;
+
+        case DANGLING_NAME:
+            mStack[mStackSize - 1] = NONEMPTY_OBJECT;
+            break;
+
+        case EMPTY_DOCUMENT:
+            mStack[mStackSize - 1] = NONEMPTY_DOCUMENT;
+            break;
+
+        default:
+            if (skipWhitespace() == -1)
+                return mPeeked = JsonToken.END_DOCUMENT;
+            throw syntaxError("Expected the end of the document");
+        }
+
+        // A value.
+        c = nextNonWhitespace();
+        switch (c) {
+        case '{':
+            return mPeeked = JsonToken.BEGIN_OBJECT;
+        case '[':
+            return mPeeked = JsonToken.BEGIN_ARRAY;
+        case '"':
+            return mPeeked = JsonToken.STRING;
+        case 't':
+        case 'f':
+            mPos--;
+            return mPeeked = JsonToken.BOOLEAN;
+        case 'n':
+            mPos--;
+            return mPeeked = JsonToken.NULL;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                mPos--;
+                return mPeeked = JsonToken.NUMBER;
+            }
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        final JsonToken token = peek();
+        if (token != expected)
+            throw new IllegalStateException("Expected " + expected
+                                            + " but was " + token);
+        mPeeked = null;
+    }
+
+    private void push(int scope) {
+        if (mStackSize == mStack.length) {
+            final int[] stack = new int[mStackSize * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+        }
+        mStack[mStackSize++] = scope;
+    }
+
+    /**
+     * @return The next byte, or -1 at the end of the stream.  A byte
+     *         just read can be unread with mPos--.
+     */
+    private int read() throws IOException {
+        if (mPos == mLimit) {
+            final int count = mIn.read(mBuffer, 0, mBuffer.length);
+            if (count <= 0)
+                return -1;
+            mPos = 0;
+            mLimit = count;
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    /**
+     * @return The next byte that isn't whitespace, which is consumed,
+     *         or -1 at the end of the stream.
+     */
+    private int skipWhitespace() throws IOException {
+        int c;
+        do
+            c = read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        final int c = skipWhitespace();
+        if (c == -1)
+            throw syntaxError("Unexpected end of input");
+        return c;
+    }
+
+    /**
+     * @return The char of the escape sequence whose backslash was
+     *         just read.
+     */
+    private int readEscape() throws IOException {
+        final int c = read();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                final int digit = Character.digit(read(), 16);
+                if (digit == -1)
+                    throw syntaxError("Malformed \\u escape");
+                value = value << 4 | digit;
+            }
+            return value;
+        case -1:
+            throw syntaxError("Unterminated escape");
+        default:
+            // '"', '\\', '/', and anything else escaped needlessly.
+            return c;
+        }
+    }
+
+    /**
+     * @return The code point whose UTF-8 encoding starts with @a
+     *         lead, or U+FFFD if it's malformed.
+     */
+    private int readUtf8(int lead) throws IOException {
+        int count;
+        int codePoint;
+        if (lead >= 0xf0 && lead <= 0xf7) {
+            count = 3;
+            codePoint = lead & 0x07;
+        } else if (lead >= 0xe0) {
+            count = 2;
+            codePoint = lead & 0x0f;
+        } else if (lead >= 0xc0) {
+            count = 1;
+            codePoint = lead & 0x1f;
+        } else
+            return 0xfffd;
+        while (count-- > 0) {
+            final int c = read();
+            if ((c & 0xc0) != 0x80) {
+                if (c != -1)
+                    mPos--;
+                return 0xfffd;
+            }
+            codePoint = codePoint << 6 | (c & 0x3f);
+        }
+        return Character.isValidCodePoint(codePoint)
+            ? codePoint
+            : 0xfffd;
+    }
+
+    private void skipString() throws IOException {
+        for (int c = read(); c != '"'; c = read())
+            if (c == '\\')
+                read();
+            else if (c == -1)
+                throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Skip a number, true, false, or null.
+     */
+    private void skipLiteral() throws IOException {
+        int c;
+        do
+            c = read();
+        while (isLiteralChar(c));
+        if (c != -1)
+            mPos--;
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++)
+            if (read() != literal.charAt(i))
+                throw syntaxError("Expected a literal");
+    }
+
+    /**
+     * Read a number, leaving its text in mString.  Numbers with few
+     * enough digits, which is all the web service sends, are computed
+     * exactly from them; others are parsed from the text.
+     */
+    private double readNumber() throws IOException {
+        mString.setLength(0);
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean negative = false;
+        boolean fraction = false;
+        boolean exact = true;
+
+        int c = read();
+        if (c == '-') {
+            negative = true;
+            mString.append('-');
+            c = read();
+        }
+        for (; isLiteralChar(c); c = read()) {
+            mString.append((char) c);
+            if (c >= '0' && c <= '9') {
+                if (mantissa == 0 && c == '0') {
+                    // A leading zero isn't significant.
+                    if (fraction)
+                        exponent--;
+                } else if (digits < MAX_EXACT_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (fraction)
+                        exponent--;
+                } else
+                    exact = false;
+            } else if (c == '.' && !fraction)
+                fraction = true;
+            else
+                // An exponent, or something malformed.
+                exact = false;
+        }
+        if (c != -1)
+            mPos--;
+
+        if (exact && mString.length() > (negative ? 1 : 0)
+            && -exponent < POWERS_OF_TEN.length) {
+            final double value = mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(mString.toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError("Malformed number " + mString);
+        }
+    }
+
+    private static boolean isLiteralChar(int c) {
+        return (c >= '0' && c <= '9')
+            || (c >= 'a' && c <= 'z')
+            || (c >= 'A' && c <= 'Z')
+            || c == '-'
+            || c == '+'
+            || c == '.';
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at depth " + mStackSize);
+    }
+}
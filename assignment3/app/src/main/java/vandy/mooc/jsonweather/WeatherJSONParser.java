@@ -2,11 +2,10 @@ package vandy.mooc.jsonweather;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
-import android.util.JsonReader;
+import vandy.mooc.aidl.WeatherData;
 import android.util.JsonToken;
 
 /**
@@ -20,19 +19,73 @@ public class WeatherJSONParser {
     private final String TAG =
         this.getClass().getCanonicalName();
 
+    /**
+     * Layout of the metadata array filled in by parseWeatherData().
+     */
+    public final static int METADATA_COD = 0;
+    public final static int METADATA_DT = 1;
+    public final static int METADATA_SIZE = 2;
+
+    /**
+     * Field names of each object, which JsonFieldReader matches as
+     * it reads them so no name String is made, and the index of each
+     * in its trie.
+     */
+    private static final int BASE = 0, COD = 1, DT = 2, ID = 3, MAIN = 4,
+        NAME = 5, SYS = 6, WEATHER = 7, WIND = 8;
+    private static final FieldTrie JSON_WEATHER_FIELDS =
+        new FieldTrie(JsonWeather.base_JSON,
+                      JsonWeather.cod_JSON,
+                      JsonWeather.dt_JSON,
+                      JsonWeather.id_JSON,
+                      JsonWeather.main_JSON,
+                      JsonWeather.name_JSON,
+                      JsonWeather.sys_JSON,
+                      JsonWeather.weather_JSON,
+                      JsonWeather.wind_JSON);
+
+    private static final int WEATHER_DESCRIPTION = 0, WEATHER_ICON = 1,
+        WEATHER_ID = 2, WEATHER_MAIN = 3;
+    private static final FieldTrie WEATHER_FIELDS =
+        new FieldTrie(Weather.description_JSON,
+                      Weather.icon_JSON,
+                      Weather.id_JSON,
+                      Weather.main_JSON);
+
+    private static final int MAIN_GRND_LEVEL = 0, MAIN_HUMIDITY = 1,
+        MAIN_PRESSURE = 2, MAIN_SEA_LEVEL = 3, MAIN_TEMP = 4,
+        MAIN_TEMP_MAX = 5, MAIN_TEMP_MIN = 6;
+    private static final FieldTrie MAIN_FIELDS =
+        new FieldTrie(Main.grndLevel_JSON,
+                      Main.humidity_JSON,
+                      Main.pressure_JSON,
+                      Main.seaLevel_JSON,
+                      Main.temp_JSON,
+                      Main.tempMax_JSON,
+                      Main.tempMin_JSON);
+
+    private static final int WIND_DEG = 0, WIND_SPEED = 1;
+    private static final FieldTrie WIND_FIELDS =
+        new FieldTrie(Wind.deg_JSON,
+                      Wind.speed_JSON);
+
+    private static final int SYS_COUNTRY = 0, SYS_MESSAGE = 1,
+        SYS_SUNRISE = 2, SYS_SUNSET = 3;
+    private static final FieldTrie SYS_FIELDS =
+        new FieldTrie(Sys.country_JSON,
+                      Sys.message_JSON,
+                      Sys.sunrise_JSON,
+                      Sys.sunset_JSON);
+
     /**
      * Parse the @a inputStream and convert it into a List of JsonWeather
      * objects.
      */
     public List<JsonWeather> parseJsonStream(InputStream inputStream)
         throws IOException {
-        // Create a JsonReader for the inputStream.
-        JsonReader reader =
-                new JsonReader(new InputStreamReader(inputStream,
-                        "UTF-8"));
+        // Create a JsonFieldReader for the inputStream.
+        final JsonFieldReader reader = new JsonFieldReader(inputStream);
         try {
-            // Log.d(TAG, "Parsing the results returned as an array");
-
             return parseJsonWeatherArray(reader);
         } finally {
             reader.close();
@@ -41,26 +94,41 @@ public class WeatherJSONParser {
 
     public JsonWeather parseJson(InputStream inputStream)
         throws IOException {
-        // Create a JsonReader for the inputStream.
-        JsonReader reader =
-                new JsonReader(new InputStreamReader(inputStream,
-                        "UTF-8"));
+        // Create a JsonFieldReader for the inputStream.
+        final JsonFieldReader reader = new JsonFieldReader(inputStream);
         try {
-            // Log.d(TAG, "Parsing the results returned as an array");
-
             return parseJsonWeather(reader);
         } finally {
             reader.close();
         }
     }
 
+    /**
+     * Parse the @a inputStream straight into a WeatherData, skipping
+     * everything a WeatherData doesn't hold.  No JsonWeather, Main,
+     * Sys, Wind, or Weather objects are made, so the only allocations
+     * are the reader, the name, and the WeatherData.
+     *
+     * @param metadata Receives the document's "cod" and "dt", or 0
+     *        if they're missing, at METADATA_COD and METADATA_DT.
+     */
+    public WeatherData parseWeatherData(InputStream inputStream,
+                                        long[] metadata)
+        throws IOException {
+        final JsonFieldReader reader = new JsonFieldReader(inputStream);
+        try {
+            return parseWeatherData(reader, metadata);
+        } finally {
+            reader.close();
+        }
+    }
+
     /**
      * Parse a Json stream and convert it into a List of JsonWeather
      * objects.
      */
-    public List<JsonWeather> parseJsonWeatherArray(JsonReader reader)
+    public List<JsonWeather> parseJsonWeatherArray(JsonFieldReader reader)
         throws IOException {
-
         reader.beginArray();
         try {
             if (reader.peek() == JsonToken.END_ARRAY)
@@ -80,52 +148,47 @@ public class WeatherJSONParser {
     /**
      * Parse a Json stream and return a JsonWeather object.
      */
-    public JsonWeather parseJsonWeather(JsonReader reader)
-            throws IOException {
-
+    public JsonWeather parseJsonWeather(JsonFieldReader reader)
+        throws IOException {
         JsonWeather jsonWeather = new JsonWeather();
         reader.beginObject();
 
         try {
             while (reader.hasNext()) {
-                String name = reader.nextName();
-                if (name.equals(JsonWeather.base_JSON)) {
+                switch (reader.nextField(JSON_WEATHER_FIELDS)) {
+                case BASE:
                     jsonWeather.setBase(reader.nextString());
-
-                } else if (name.equals(JsonWeather.cod_JSON)) {
+                    break;
+                case COD:
                     jsonWeather.setCod(reader.nextLong());
-
-                } else if (name.equals(JsonWeather.dt_JSON)) {
+                    break;
+                case DT:
                     jsonWeather.setDt(reader.nextLong());
-
-                } else if (name.equals(JsonWeather.id_JSON)) {
+                    break;
+                case ID:
                     jsonWeather.setId(reader.nextLong());
-
-                } else if (name.equals(JsonWeather.main_JSON)) {
-                    Main main = parseMain(reader);
-                    jsonWeather.setMain(main);
-
-                } else if (name.equals(JsonWeather.name_JSON)) {
+                    break;
+                case MAIN:
+                    jsonWeather.setMain(parseMain(reader));
+                    break;
+                case NAME:
                     jsonWeather.setName(reader.nextString());
-
-                } else if (name.equals(JsonWeather.sys_JSON)) {
-                    Sys sys = parseSys(reader);
-                    jsonWeather.setSys(sys);
-
-                } else if (name.equals(JsonWeather.weather_JSON)) {
-                    if (reader.peek() == JsonToken.BEGIN_ARRAY) {
-                        List<Weather> weathers = parseWeathers(reader);
-                        jsonWeather.setWeather(weathers);
-                    }
-
-                } else if (name.equals(JsonWeather.wind_JSON)) {
-                    Wind wind = parseWind(reader);
-                    jsonWeather.setWind(wind);
-
-                } else {
+                    break;
+                case SYS:
+                    jsonWeather.setSys(parseSys(reader));
+                    break;
+                case WEATHER:
+                    if (reader.peek() == JsonToken.BEGIN_ARRAY)
+                        jsonWeather.setWeather(parseWeathers(reader));
+                    else
+                        reader.skipValue();
+                    break;
+                case WIND:
+                    jsonWeather.setWind(parseWind(reader));
+                    break;
+                default:
                     reader.skipValue();
-                    // Log.d(TAG, "weird problem with " + name + " field");
-
+                    break;
                 }
             }
         } finally {
@@ -137,7 +200,8 @@ public class WeatherJSONParser {
     /**
      * Parse a Json stream and return a List of Weather objects.
      */
-    public List<Weather> parseWeathers(JsonReader reader) throws IOException {
+    public List<Weather> parseWeathers(JsonFieldReader reader)
+        throws IOException {
         reader.beginArray();
 
         try {
@@ -155,30 +219,29 @@ public class WeatherJSONParser {
     /**
      * Parse a Json stream and return a Weather object.
      */
-    public Weather parseWeather(JsonReader reader) throws IOException {
-
+    public Weather parseWeather(JsonFieldReader reader) throws IOException {
         reader.beginObject();
 
         Weather weather = new Weather();
 
         try {
             while (reader.hasNext()) {
-                String name = reader.nextName();
-                if (name.equals(Weather.description_JSON)) {
+                switch (reader.nextField(WEATHER_FIELDS)) {
+                case WEATHER_DESCRIPTION:
                     weather.setDescription(reader.nextString());
-
-                } else if (name.equals(Weather.icon_JSON)) {
+                    break;
+                case WEATHER_ICON:
                     weather.setIcon(reader.nextString());
-
-                } else if (name.equals(Weather.id_JSON)) {
+                    break;
+                case WEATHER_ID:
                     weather.setId(reader.nextLong());
-
-                } else if (name.equals(Weather.main_JSON)) {
+                    break;
+                case WEATHER_MAIN:
                     weather.setMain(reader.nextString());
-
-                } else {
+                    break;
+                default:
                     reader.skipValue();
-
+                    break;
                 }
             }
         } finally {
@@ -186,43 +249,42 @@ public class WeatherJSONParser {
         }
         return weather;
     }
-    
+
     /**
      * Parse a Json stream and return a Main Object.
      */
-    public Main parseMain(JsonReader reader) 
-        throws IOException {
+    public Main parseMain(JsonFieldReader reader) throws IOException {
         reader.beginObject();
 
         Main main = new Main();
 
         try {
             while (reader.hasNext()) {
-                String name = reader.nextName();
-                if (name.equals(Main.grndLevel_JSON)) {
+                switch (reader.nextField(MAIN_FIELDS)) {
+                case MAIN_GRND_LEVEL:
                     main.setGrndLevel(reader.nextDouble());
-
-                } else if (name.equals(Main.humidity_JSON)) {
+                    break;
+                case MAIN_HUMIDITY:
                     main.setHumidity(reader.nextLong());
-
-                } else if (name.equals(Main.pressure_JSON)) {
+                    break;
+                case MAIN_PRESSURE:
                     main.setPressure(reader.nextDouble());
-
-                } else if (name.equals(Main.seaLevel_JSON)) {
+                    break;
+                case MAIN_SEA_LEVEL:
                     main.setSeaLevel(reader.nextDouble());
-
-                } else if (name.equals(Main.temp_JSON)) {
+                    break;
+                case MAIN_TEMP:
                     main.setTemp(reader.nextDouble());
-
-                } else if (name.equals(Main.tempMax_JSON)) {
+                    break;
+                case MAIN_TEMP_MAX:
                     main.setTempMax(reader.nextDouble());
-
-                } else if (name.equals(Main.tempMin_JSON)) {
+                    break;
+                case MAIN_TEMP_MIN:
                     main.setTempMin(reader.nextDouble());
-
-                } else {
+                    break;
+                default:
                     reader.skipValue();
-
+                    break;
                 }
             }
         } finally {
@@ -234,23 +296,23 @@ public class WeatherJSONParser {
     /**
      * Parse a Json stream and return a Wind Object.
      */
-    public Wind parseWind(JsonReader reader) throws IOException {
+    public Wind parseWind(JsonFieldReader reader) throws IOException {
         reader.beginObject();
 
         Wind wind = new Wind();
 
         try {
             while (reader.hasNext()) {
-                String name = reader.nextName();
-                if (name.equals(Wind.deg_JSON)) {
+                switch (reader.nextField(WIND_FIELDS)) {
+                case WIND_DEG:
                     wind.setDeg(reader.nextDouble());
-
-                } else if (name.equals(Wind.speed_JSON)) {
+                    break;
+                case WIND_SPEED:
                     wind.setSpeed(reader.nextDouble());
-
-                } else {
+                    break;
+                default:
                     reader.skipValue();
-
+                    break;
                 }
             }
         } finally {
@@ -262,29 +324,29 @@ public class WeatherJSONParser {
     /**
      * Parse a Json stream and return a Sys Object.
      */
-    public Sys parseSys(JsonReader reader) throws IOException {
+    public Sys parseSys(JsonFieldReader reader) throws IOException {
         reader.beginObject();
 
         Sys sys = new Sys();
 
         try {
             while (reader.hasNext()) {
-                String name = reader.nextName();
-                if (name.equals(Sys.country_JSON)) {
+                switch (reader.nextField(SYS_FIELDS)) {
+                case SYS_COUNTRY:
                     sys.setCountry(reader.nextString());
-
-                } else if (name.equals(Sys.message_JSON)) {
+                    break;
+                case SYS_MESSAGE:
                     sys.setMessage(reader.nextDouble());
-
-                } else if (name.equals(Sys.sunrise_JSON)) {
+                    break;
+                case SYS_SUNRISE:
                     sys.setSunrise(reader.nextLong());
-
-                } else if (name.equals(Sys.sunset_JSON)) {
+                    break;
+                case SYS_SUNSET:
                     sys.setSunset(reader.nextLong());
-
-                } else {
+                    break;
+                default:
                     reader.skipValue();
-
+                    break;
                 }
             }
         } finally {
@@ -292,4 +354,112 @@ public class WeatherJSONParser {
         }
         return sys;
     }
+
+    /**
+     * Parse a Json stream and project it into a WeatherData, keeping
+     * the fields of the nested objects it needs in locals.
+     *
+     * @param metadata Receives the document's "cod" and "dt" at
+     *        METADATA_COD and METADATA_DT.
+     */
+    public WeatherData parseWeatherData(JsonFieldReader reader,
+                                        long[] metadata)
+        throws IOException {
+        long id = 0;
+        String name = null;
+        double speed = 0;
+        double deg = 0;
+        double temp = 0;
+        long humidity = 0;
+        long sunrise = 0;
+        long sunset = 0;
+        metadata[METADATA_COD] = 0;
+        metadata[METADATA_DT] = 0;
+
+        reader.beginObject();
+        try {
+            while (reader.hasNext()) {
+                switch (reader.nextField(JSON_WEATHER_FIELDS)) {
+                case COD:
+                    metadata[METADATA_COD] = reader.nextLong();
+                    break;
+                case DT:
+                    metadata[METADATA_DT] = reader.nextLong();
+                    break;
+                case ID:
+                    id = reader.nextLong();
+                    break;
+                case NAME:
+                    name = reader.nextString();
+                    break;
+                case MAIN:
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextField(MAIN_FIELDS)) {
+                        case MAIN_TEMP:
+                            temp = reader.nextDouble();
+                            break;
+                        case MAIN_HUMIDITY:
+                            humidity = reader.nextLong();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case SYS:
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextField(SYS_FIELDS)) {
+                        case SYS_SUNRISE:
+                            sunrise = reader.nextLong();
+                            break;
+                        case SYS_SUNSET:
+                            sunset = reader.nextLong();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case WIND:
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextField(WIND_FIELDS)) {
+                        case WIND_SPEED:
+                            speed = reader.nextDouble();
+                            break;
+                        case WIND_DEG:
+                            deg = reader.nextDouble();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    // Including "base" and "weather", which WeatherData
+                    // doesn't hold.
+                    reader.skipValue();
+                    break;
+                }
+            }
+        } finally {
+            reader.endObject();
+        }
+        return new WeatherData(id,
+                               name,
+                               speed,
+                               deg,
+                               temp,
+                               humidity,
+                               sunrise,
+                               sunset);
+    }
 }
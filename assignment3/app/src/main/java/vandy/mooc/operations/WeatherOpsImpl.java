@@ -1,22 +1,33 @@
 package vandy.mooc.operations;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
+import vandy.mooc.R;
 import vandy.mooc.activities.MainActivity;
 import vandy.mooc.aidl.WeatherCall;
 import vandy.mooc.aidl.WeatherData;
+import vandy.mooc.aidl.WeatherDataList;
 import vandy.mooc.aidl.WeatherRequest;
 import vandy.mooc.aidl.WeatherResults;
 import vandy.mooc.services.WeatherServiceAsync;
 import vandy.mooc.services.WeatherServiceSync;
 import vandy.mooc.utils.GenericServiceConnection;
+import vandy.mooc.utils.RequestPipeline;
+import vandy.mooc.utils.WeatherLookupException;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 
 /**
  * This class implements all the weather-related operations defined in
@@ -50,6 +61,85 @@ public class WeatherOpsImpl implements WeatherOps {
      */
     protected WeatherData mResults;
 
+    /**
+     * Results of the current multi-location lookup received so far,
+     * or null if the last lookup was for a single location.
+     */
+    protected List<WeatherData> mBatchResults;
+
+    /**
+     * Id given to the next lookup.  Only used in the UI Thread.
+     */
+    private long mNextRequestId = 1;
+
+    /**
+     * Id of the latest lookup.  Results of any other lookup have been
+     * superseded and are dropped.  Read in Binder threads, so results
+     * are dropped before they're posted to the UI Thread.
+     */
+    private volatile long mCurrentRequestId;
+
+    /**
+     * Id of the async lookup whose results haven't all arrived, or 0
+     * if there is none.  Only used in the UI Thread.
+     */
+    private long mPendingAsyncRequestId;
+
+    /**
+     * Number of milliseconds the service is given to look up one
+     * location, or a whole multi-location lookup.  Results that
+     * would arrive later aren't worth waiting for.
+     */
+    private static final long LOOKUP_TIMEOUT = 10000;
+    private static final long BATCH_LOOKUP_TIMEOUT = 20000;
+
+    /**
+     * Separates the locations of a multi-location lookup.
+     */
+    private static final String LOCATION_SEPARATOR = ";";
+
+    /**
+     * Number of milliseconds weather is kept in the near cache, and
+     * the maximum number of cities kept.  The async service tells us
+     * whenever its cached weather of a city changes, so the
+     * expiration time is only a safety net in case an update is
+     * lost; it must stay short since near cache hits never reach the
+     * service, which therefore never refreshes them on our behalf.
+     */
+    private static final long NEAR_CACHE_EXPIRATION_TIME = 60 * 1000;
+    private static final int NEAR_CACHE_MAX_ENTRIES = 64;
+
+    /**
+     * Near cache of weather received from the services, keyed by
+     * city id, so looking up the same location again is answered
+     * without IPC.  It's small enough that expired entries are just
+     * dropped when they're read, or evicted as least recently used.
+     * Updated in Binder threads by sendCacheUpdate().
+     */
+    private final LruCache<Long, NearCacheEntry> mNearCache =
+        new LruCache<Long, NearCacheEntry>(NEAR_CACHE_MAX_ENTRIES);
+
+    /**
+     * City id of each location whose weather is in mNearCache.  Only
+     * used in the UI Thread.
+     */
+    private final Map<String, Long> mNearAliases =
+        new HashMap<String, Long>();
+
+    /**
+     * The async service mWeatherResults is registered with as a
+     * cache listener, or null if it isn't.  Weather is only put in
+     * the near cache while it is registered, since it would
+     * otherwise never hear of changes.  Only used in the UI Thread.
+     */
+    private WeatherRequest mCacheListenerService;
+
+    /**
+     * Location of the pending single-location async lookup.  Only
+     * used in the UI Thread.
+     */
+    private String mPendingLocation;
+
     /**
      * This Handler is used to post Runnables to the UI from the
      * mWeatherResults callback methods to avoid a dependency on the
@@ -58,6 +148,19 @@ public class WeatherOpsImpl implements WeatherOps {
      */
     private final Handler mDisplayHandler = new Handler();
 
+    /**
+     * Runs sync lookups in the background, several at once, and
+     * hands their results to the UI Thread in the order the lookups
+     * were started.  Identical lookups in flight share one call.
+     */
+    private final RequestPipeline<String, WeatherData> mSyncLookups;
+
+    /**
+     * Ticket of the sync lookup whose result hasn't arrived, or null
+     * if there is none.  Only used in the UI Thread.
+     */
+    private RequestPipeline<String, WeatherData>.Ticket mPendingSyncTicket;
+
     /**
      * The implementation of the WeatherResults AIDL Interface, which
      * will be passed to the Weather Web service using the
@@ -74,8 +177,11 @@ public class WeatherOpsImpl implements WeatherOps {
              * return the results back to the WeatherActivity.
              */
             @Override
-            public void sendResults(final WeatherData weatherData)
+            public void sendResults(final long requestId,
+                                    final WeatherData weatherData)
                 throws RemoteException {
+                if (isSuperseded(requestId))
+                    return;
                 // Since the Android Binder framework dispatches this
                 // method in a background Thread we need to explicitly
                 // post a runnable containing the results to the UI
@@ -85,7 +191,12 @@ public class WeatherOpsImpl implements WeatherOps {
                 // during a runtime configuration change.
                 mDisplayHandler.post(new Runnable() {
                         public void run() {
+                            if (isSuperseded(requestId))
+                                return;
+                            mPendingAsyncRequestId = 0;
                             mResults = weatherData;
+                            putNearCache(mPendingLocation,
+                                         weatherData);
                             mActivity.get().displayResults
                                 (weatherData,
                                  null);
@@ -98,8 +209,11 @@ public class WeatherOpsImpl implements WeatherOps {
              * return error results back to the WeatherActivity.
              */
             @Override
-            public void sendError(final String reason)
+            public void sendError(final long requestId,
+                                  final String reason)
                 throws RemoteException {
+                if (isSuperseded(requestId))
+                    return;
                 // Since the Android Binder framework dispatches this
                 // method in a background Thread we need to explicitly
                 // post a runnable containing the results to the UI
@@ -109,11 +223,103 @@ public class WeatherOpsImpl implements WeatherOps {
                 // during a runtime configuration change.
                 mDisplayHandler.post(new Runnable() {
                         public void run() {
+                            if (isSuperseded(requestId))
+                                return;
+                            mPendingAsyncRequestId = 0;
                             mActivity.get().displayResults(null,
                                                            reason);
                         }
                     });
             }
+
+            /**
+             * This method is invoked by the WeatherServiceAsync to
+             * stream some of the results of a multi-location lookup
+             * back to the WeatherActivity as soon as they're
+             * available, so they're shown before the slower ones
+             * arrive.
+             */
+            @Override
+            public void sendPartialResults(final long requestId,
+                                           final WeatherDataList results)
+                throws RemoteException {
+                if (isSuperseded(requestId))
+                    return;
+                mDisplayHandler.post(new Runnable() {
+                        public void run() {
+                            if (isSuperseded(requestId))
+                                return;
+                            mBatchResults.addAll(results);
+                            mActivity.get().displayResults(mBatchResults);
+                        }
+                    });
+            }
+
+            /**
+             * This method is invoked by the WeatherServiceAsync once
+             * every location of a multi-location lookup has been
+             * looked up.
+             */
+            @Override
+            public void sendComplete(final long requestId,
+                                     final int found,
+                                     final List<String> errors)
+                throws RemoteException {
+                if (isSuperseded(requestId))
+                    return;
+                mDisplayHandler.post(new Runnable() {
+                        public void run() {
+                            if (isSuperseded(requestId))
+                                return;
+                            mPendingAsyncRequestId = 0;
+                            mActivity.get().displayBatchComplete(found,
+                                                                 errors);
+                        }
+                    });
+            }
+
+            /**
+             * This method is invoked by the WeatherServiceAsync to
+             * push the weather of subscribed locations that changed,
+             * i.e., of the locations on display.
+             */
+            @Override
+            public void sendUpdates(final WeatherDataList results)
+                throws RemoteException {
+                Log.d(TAG, "Weather of " + results.size()
+                      + " subscribed locations changed");
+                mDisplayHandler.post(new Runnable() {
+                        public void run() {
+                            displayUpdates(results);
+                        }
+                    });
+            }
+
+            /**
+             * This method is invoked by the WeatherServiceAsync
+             * whenever its cached weather of a city changes.  Cities
+             * in the near cache are updated, and so is the display if
+             * it shows one of them.
+             */
+            @Override
+            public void sendCacheUpdate(final WeatherData weatherData)
+                throws RemoteException {
+                final Long cityId = weatherData.getmId();
+                if (mNearCache.get(cityId) == null)
+                    return;
+                mNearCache.put(cityId, new NearCacheEntry(weatherData));
+                mDisplayHandler.post(new Runnable() {
+                        public void run() {
+                            if (mBatchResults != null
+                                || mResults == null
+                                || mResults.getmId() != cityId)
+                                return;
+                            mResults = weatherData;
+                            mActivity.get().displayResults(weatherData,
+                                                           null);
+                        }
+                    });
+            }
 	};
 
     /**
@@ -129,6 +335,38 @@ public class WeatherOpsImpl implements WeatherOps {
 
         mServiceConnectionAsync =
             new GenericServiceConnection<WeatherRequest>(WeatherRequest.class);
+
+        mSyncLookups =
+            new RequestPipeline<String, WeatherData>("WeatherSyncLookup",
+                                                     activity.getResources().getInteger(R.integer.weather_sync_lookup_threads),
+                                                     LOOKUP_TIMEOUT,
+                                                     new RequestPipeline.Call<String, WeatherData>() {
+                    /**
+                     * Retrieve the weather results via a synchronous
+                     * two-way method call, which runs in a background
+                     * thread to avoid blocking the UI thread.  A
+                     * failed lookup is thrown with the reason the
+                     * service gave.
+                     */
+                    @Override
+                    public WeatherData call(String location,
+                                            long deadline)
+                        throws Exception {
+                        final WeatherCall weatherCall =
+                            mServiceConnectionSync.getInterface();
+                        if (weatherCall == null)
+                            throw new RemoteException();
+                        final List<String> errors = new ArrayList<String>(1);
+                        final WeatherData weatherData =
+                            weatherCall.getCurrentWeather(location,
+                                                          errors,
+                                                          deadline);
+                        if (weatherData == null && !errors.isEmpty())
+                            throw new Exception(errors.get(0));
+                        return weatherData;
+                    }
+                },
+                mDisplayHandler);
     }
 
     /**
@@ -149,7 +387,9 @@ public class WeatherOpsImpl implements WeatherOps {
      * Display results if any (due to runtime configuration change).
      */
     private void updateResultsDisplay() {
-        if (mResults != null)
+        if (mBatchResults != null)
+            mActivity.get().displayResults(mBatchResults);
+        else if (mResults != null)
             mActivity.get().displayResults(mResults, 
                                            null);
     }
@@ -191,6 +431,10 @@ public class WeatherOpsImpl implements WeatherOps {
             Log.d(TAG,
                   "calling unbindService()");
 
+            unsubscribe();
+            unregisterCacheListener();
+            mSyncLookups.shutdown();
+
             // Unbind the Async Service if it is connected.
             if (mServiceConnectionAsync.getInterface() != null)
                 mActivity.get().getApplicationContext().unbindService
@@ -205,21 +449,57 @@ public class WeatherOpsImpl implements WeatherOps {
 
     /*
      * Initiate the asynchronous weather lookup when the user presses
-     * the "Look Up Async" button.
+     * the "Look Up Async" button.  Several locations separated by
+     * LOCATION_SEPARATOR are looked up in one request, whose results
+     * are displayed as they arrive.
      */
     public void requestWeatherAsync(String weather) {
         final WeatherRequest weatherRequest =
             mServiceConnectionAsync.getInterface();
 
-        if (weatherRequest != null) {
+        final List<String> locations = splitLocations(weather);
+        subscribe(locations);
+
+        if (weatherRequest != null && locations.size() > 1) {
+            final long requestId = startRequest();
+            try {
+                mResults = null;
+                mBatchResults = new ArrayList<WeatherData>();
+                // Invoke a one-way AIDL call, which does not block
+                // the client.  The results are streamed back via the
+                // sendPartialResults() and sendComplete() methods of
+                // the mWeatherResults callback object.
+                weatherRequest.getCurrentWeatherBatch(requestId,
+                                                      SystemClock.elapsedRealtime()
+                                                      + BATCH_LOOKUP_TIMEOUT,
+                                                      locations,
+                                                      mWeatherResults);
+                mPendingAsyncRequestId = requestId;
+            } catch (RemoteException e) {
+                Log.e(TAG,
+                      "RemoteException:" 
+                      + e.getMessage());
+            }
+        } else if (weatherRequest != null) {
+            registerCacheListener();
+            if (displayNearCache(weather))
+                return;
+
+            final long requestId = startRequest();
+            mBatchResults = null;
+            mPendingLocation = weather;
             try {
                 // Invoke a one-way AIDL call, which does not block
                 // the client.  The results are returned via the
                 // sendResults() method of the mWeatherResults
                 // callback object, which runs in a Thread from the
                 // Thread pool managed by the Binder framework.
-                weatherRequest.getCurrentWeather(weather,
-                                             mWeatherResults);
+                weatherRequest.getCurrentWeather(requestId,
+                                                 SystemClock.elapsedRealtime()
+                                                 + LOOKUP_TIMEOUT,
+                                                 weather,
+                                                 mWeatherResults);
+                mPendingAsyncRequestId = requestId;
             } catch (RemoteException e) {
                 Log.e(TAG,
                       "RemoteException:" 
@@ -231,54 +511,317 @@ public class WeatherOpsImpl implements WeatherOps {
         }
     }
 
+    /**
+     * Start a new lookup, which supersedes every earlier one.  The
+     * async lookup still in progress, if any, is cancelled so the
+     * service stops working on it, and so is the sync one, so later
+     * sync lookups aren't delivered after it.  Must be called in the
+     * UI Thread.
+     *
+     * @return The id of the new lookup.
+     */
+    private long startRequest() {
+        final WeatherRequest weatherRequest =
+            mServiceConnectionAsync.getInterface();
+
+        if (mPendingAsyncRequestId != 0 && weatherRequest != null) {
+            try {
+                weatherRequest.cancel(mPendingAsyncRequestId);
+            } catch (RemoteException e) {
+                Log.e(TAG,
+                      "RemoteException:" 
+                      + e.getMessage());
+            }
+        }
+        mPendingAsyncRequestId = 0;
+
+        if (mPendingSyncTicket != null) {
+            mSyncLookups.cancel(mPendingSyncTicket);
+            mPendingSyncTicket = null;
+        }
+
+        mCurrentRequestId = mNextRequestId++;
+        return mCurrentRequestId;
+    }
+
+    /**
+     * Display the weather of @a location from the near cache, if it's
+     * there, superseding any lookup in progress.
+     *
+     * @return True if the weather was displayed.
+     */
+    private boolean displayNearCache(String location) {
+        final String alias = nearAlias(location);
+        final Long cityId = mNearAliases.get(alias);
+        if (cityId == null)
+            return false;
+
+        final NearCacheEntry entry = mNearCache.get(cityId);
+        if (entry == null
+            || SystemClock.elapsedRealtime() >= entry.mExpiresAt) {
+            mNearCache.remove(cityId);
+            mNearAliases.remove(alias);
+            return false;
+        }
+        final WeatherData weatherData = entry.mWeatherData;
+
+        Log.d(TAG, "Near cache hit for " + location);
+        startRequest();
+        mResults = weatherData;
+        mBatchResults = null;
+        mActivity.get().displayResults(weatherData,
+                                       null);
+        return true;
+    }
+
+    /**
+     * Put the weather of @a location in the near cache, if the async
+     * service tells us of its changes.
+     */
+    private void putNearCache(String location,
+                              WeatherData weatherData) {
+        if (mCacheListenerService == null
+            || location == null
+            || weatherData == null
+            || weatherData.getmId() == 0)
+            return;
+        if (mNearAliases.size() >= 4 * NEAR_CACHE_MAX_ENTRIES)
+            // Forget aliases of evicted cities now and then.
+            mNearAliases.clear();
+        mNearAliases.put(nearAlias(location),
+                         weatherData.getmId());
+        mNearCache.put(weatherData.getmId(),
+                       new NearCacheEntry(weatherData));
+    }
+
+    /**
+     * Subscribe mWeatherResults to the weather of @a locations, which
+     * are about to be displayed, replacing the locations it was
+     * subscribed to before.  The async service pushes their changes
+     * to sendUpdates() until the next lookup.
+     */
+    private void subscribe(List<String> locations) {
+        final WeatherRequest weatherRequest =
+            mServiceConnectionAsync.getInterface();
+        if (weatherRequest == null)
+            return;
+
+        try {
+            weatherRequest.subscribe(locations,
+                                     mWeatherResults);
+        } catch (RemoteException e) {
+            Log.e(TAG,
+                  "RemoteException:" 
+                  + e.getMessage());
+        }
+    }
+
+    private void unsubscribe() {
+        final WeatherRequest weatherRequest =
+            mServiceConnectionAsync.getInterface();
+        if (weatherRequest == null)
+            return;
+
+        try {
+            weatherRequest.unsubscribe(mWeatherResults);
+        } catch (RemoteException e) {
+            Log.e(TAG,
+                  "RemoteException:" 
+                  + e.getMessage());
+        }
+    }
+
+    /**
+     * Replace the displayed weather of each city in @a updates with
+     * its new weather.  Must be called in the UI Thread.
+     */
+    private void displayUpdates(List<WeatherData> updates) {
+        if (mBatchResults != null) {
+            boolean changed = false;
+            for (int i = 0; i < mBatchResults.size(); i++)
+                for (WeatherData weatherData : updates)
+                    if (mBatchResults.get(i) != null
+                        && mBatchResults.get(i).getmId() == weatherData.getmId()
+                        && !mBatchResults.get(i).equals(weatherData)) {
+                        mBatchResults.set(i, weatherData);
+                        changed = true;
+                    }
+            if (changed)
+                mActivity.get().displayResults(mBatchResults);
+        } else if (mResults != null)
+            for (WeatherData weatherData : updates)
+                if (mResults.getmId() == weatherData.getmId()
+                    && !mResults.equals(weatherData)) {
+                    mResults = weatherData;
+                    mActivity.get().displayResults(weatherData,
+                                                   null);
+                }
+    }
+
+    /**
+     * Register mWeatherResults with the async service as a cache
+     * listener, unless it already is.  A service that was restarted
+     * is a new interface and has forgotten the registration, so the
+     * near cache is dropped and the listener registered again.
+     */
+    private void registerCacheListener() {
+        final WeatherRequest weatherRequest =
+            mServiceConnectionAsync.getInterface();
+        if (weatherRequest == null
+            || weatherRequest == mCacheListenerService)
+            return;
+
+        clearNearCache();
+        try {
+            weatherRequest.registerCacheListener(mWeatherResults);
+            mCacheListenerService = weatherRequest;
+        } catch (RemoteException e) {
+            Log.e(TAG,
+                  "RemoteException:" 
+                  + e.getMessage());
+        }
+    }
+
+    /**
+     * Unregister mWeatherResults as a cache listener and drop the
+     * near cache, which would no longer be kept up to date.
+     */
+    private void unregisterCacheListener() {
+        if (mCacheListenerService != null) {
+            try {
+                mCacheListenerService.unregisterCacheListener(mWeatherResults);
+            } catch (RemoteException e) {
+                Log.e(TAG,
+                      "RemoteException:" 
+                      + e.getMessage());
+            }
+            mCacheListenerService = null;
+        }
+        clearNearCache();
+    }
+
+    private void clearNearCache() {
+        mNearAliases.clear();
+        mNearCache.evictAll();
+    }
+
+    /**
+     * @return The near cache key of @a location.  It's simpler than
+     *         the service's canonical form, so a few spellings of a
+     *         location may miss.
+     */
+    private static String nearAlias(String location) {
+        return location.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return True if the lookup with @a requestId has been
+     *         superseded by a later one, so its results are dropped.
+     */
+    private boolean isSuperseded(long requestId) {
+        if (requestId == mCurrentRequestId)
+            return false;
+        Log.d(TAG, "Dropping results of superseded request " + requestId);
+        return true;
+    }
+
+    /**
+     * @return The non-empty locations in @a weather, which are
+     *         separated by LOCATION_SEPARATOR.
+     */
+    private static List<String> splitLocations(String weather) {
+        final List<String> locations = new ArrayList<String>();
+        for (String location : weather.split(LOCATION_SEPARATOR))
+            if (location.trim().length() > 0)
+                locations.add(location);
+        return locations;
+    }
+
     /*
      * Initiate the synchronous weather lookup when the user presses
      * the "Look Up Sync" button.
      */
-    public void requestWeatherSync(String location) {
+    public void requestWeatherSync(final String location) {
         final WeatherCall weatherCall =
             mServiceConnectionSync.getInterface();
 
         if (weatherCall != null) {
-            // Use an anonymous AsyncTask to download the Weather data
-            // in a separate thread and then display any results in
-            // the UI thread.
-            new AsyncTask<String, Void, WeatherData> () {
-                /**
-                 * Location for which we're trying to find weather info.
-                 */
-                private String mLocation;
-
-                /**
-                 * Retrieve the weather results via a
-                 * synchronous two-way method call, which runs in a
-                 * background thread to avoid blocking the UI thread.
-                 */
-                protected WeatherData doInBackground(String... locations) {
-                    try {
-                        mLocation = locations[0];
-                        return weatherCall.getCurrentWeather(mLocation);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
+            subscribe(Collections.singletonList(location));
+            registerCacheListener();
+            if (displayNearCache(location))
+                return;
+
+            final long requestId = startRequest();
+
+            // Look up the weather in the background and display the
+            // results in the UI thread.  Lookups are keyed by their
+            // near cache key, so different spellings of a location in
+            // flight share one call.
+            mPendingSyncTicket =
+                mSyncLookups.submit(nearAlias(location),
+                                    new RequestPipeline.Callback<String, WeatherData>() {
+                    @Override
+                    public void onResult(String alias,
+                                         WeatherData weatherData) {
+                        if (isSuperseded(requestId))
+                            return;
+                        mPendingSyncTicket = null;
+                        mResults = weatherData;
+                        mBatchResults = null;
+                        putNearCache(location,
+                                     weatherData);
+                        mActivity.get().displayResults(weatherData,
+                                                       "no weather for "
+                                                       + location
+                                                       + " found");
                     }
-                    return null;
-                }
 
-                /**
-                 * Display the results in the UI Thread.
-                 */
-                protected void onPostExecute(WeatherData weatherData) {
-                    mResults = weatherData;
-                    mActivity.get().displayResults(weatherData,
-                                                   "no weather for "
-                                                   + mLocation
-                                                   + " found");
-                }
-                // Execute the AsyncTask to find the weather without
-                // blocking the caller.
-            }.execute(location);
+                    @Override
+                    public void onFailure(String alias,
+                                          Exception error) {
+                        if (isSuperseded(requestId))
+                            return;
+                        mPendingSyncTicket = null;
+                        Log.e(TAG,
+                              "Lookup of " + location + " failed: "
+                              + error);
+                        mResults = null;
+                        mBatchResults = null;
+                        final String reason;
+                        if (error instanceof TimeoutException)
+                            reason = WeatherLookupException.describe(WeatherLookupException.Reason.DEADLINE_EXCEEDED,
+                                                                     location);
+                        else if (error instanceof RemoteException)
+                            reason = WeatherLookupException.describe(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                                                     location);
+                        else
+                            // The service's reason.
+                            reason = error.getMessage();
+                        mActivity.get().displayResults(null,
+                                                       reason);
+                    }
+                });
         } else {
             Log.d(TAG, "mWeatherCall was null.");
         }
     }
+
+    /**
+     * Weather in the near cache, and when it expires.
+     */
+    private static class NearCacheEntry {
+        final WeatherData mWeatherData;
+
+        /**
+         * SystemClock.elapsedRealtime() after which the weather isn't
+         * used.
+         */
+        final long mExpiresAt;
+
+        NearCacheEntry(WeatherData weatherData) {
+            mWeatherData = weatherData;
+            mExpiresAt = SystemClock.elapsedRealtime()
+                + NEAR_CACHE_EXPIRATION_TIME;
+        }
+    }
 }
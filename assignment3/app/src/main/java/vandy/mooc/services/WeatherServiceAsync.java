@@ -1,14 +1,29 @@
 package vandy.mooc.services;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import vandy.mooc.R;
 import vandy.mooc.aidl.WeatherData;
+import vandy.mooc.aidl.WeatherDataList;
 import vandy.mooc.aidl.WeatherRequest;
 import vandy.mooc.aidl.WeatherResults;
+import vandy.mooc.utils.BoundedWorkerPool;
+import vandy.mooc.utils.WeatherLookupException;
 import vandy.mooc.utils.WeatherWebService;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.IBinder;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -43,6 +58,98 @@ public class WeatherServiceAsync extends LifecycleLoggingService {
                           WeatherServiceAsync.class);
     }
 
+    /**
+     * Runs the lookups, so a burst of one-way calls doesn't tie up
+     * the process's Binder threads.  Its size and queue capacity are
+     * set by the weather_async_* integer resources; a call that finds
+     * the queue full is answered with a "busy" error.
+     */
+    private BoundedWorkerPool mWorkerPool;
+
+    /**
+     * Requests that are queued or running, keyed by requestKey(), so
+     * they can be cancelled.
+     */
+    private final ConcurrentHashMap<Long, Future<?>> mRequests =
+        new ConcurrentHashMap<Long, Future<?>>();
+
+    /**
+     * Pushes the weather of watched locations to subscribed clients.
+     */
+    private final WeatherSubscriptions mSubscriptions =
+        new WeatherSubscriptions();
+
+    /**
+     * Clients told about every change to the cached weather, so they
+     * can keep near caches of their own.
+     */
+    private final RemoteCallbackList<WeatherResults> mCacheListeners =
+        new RemoteCallbackList<WeatherResults>();
+
+    /**
+     * Forwards changes of the cached weather to mCacheListeners.
+     */
+    private final WeatherWebService.ChangeListener mChangeListener =
+        new WeatherWebService.ChangeListener() {
+            @Override
+            public void onWeatherChanged(WeatherData weatherData) {
+                // Broadcasts mustn't overlap, and changes arrive on
+                // whichever thread did the fetch.
+                synchronized (mCacheListeners) {
+                    final int count = mCacheListeners.beginBroadcast();
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            try {
+                                mCacheListeners.getBroadcastItem(i)
+                                    .sendCacheUpdate(weatherData);
+                            } catch (RemoteException e) {
+                                // The RemoteCallbackList drops a dead
+                                // client.
+                                Log.d(TAG, "Unable to send cache update: "
+                                      + e.getMessage());
+                            }
+                        }
+                    } finally {
+                        mCacheListeners.finishBroadcast();
+                    }
+                }
+            }
+        };
+
+    /**
+     * Hook method called when the Service is created.  Opens the
+     * persistent weather cache so this process can serve what earlier
+     * processes fetched.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        WeatherWebService.openPersistentCache(getCacheDir());
+
+        mWorkerPool =
+            new BoundedWorkerPool(TAG,
+                                  getResources().getInteger(R.integer.weather_async_worker_threads),
+                                  getResources().getInteger(R.integer.weather_async_queue_capacity));
+
+        WeatherWebService.addChangeListener(mChangeListener);
+    }
+
+    /**
+     * Hook method called when the Service is shut down.  Lets the
+     * queued lookups finish and logs the worker pool's metrics.
+     */
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "Shutting down " + mWorkerPool);
+        mWorkerPool.shutdown();
+        mSubscriptions.shutdown();
+        WeatherWebService.removeChangeListener(mChangeListener);
+        mCacheListeners.kill();
+
+        super.onDestroy();
+    }
+
     /**
      * Called when a client (e.g., WeatherActivity) calls
      * bindService() with the proper Intent.  Returns the
@@ -68,30 +175,274 @@ public class WeatherServiceAsync extends LifecycleLoggingService {
         new WeatherRequest.Stub() {
             /**
              * Implement the AIDL WeatherRequest getCurrentWeather()
-             * method, which forwards to DownloadUtils getResults() to
-             * obtain the results from the Weather Web service and
-             * then sends the results back to the Activity via a
-             * callback.
+             * method, which hands the lookup to a worker so the
+             * Binder thread is released at once.  The worker obtains
+             * the results from the Weather Web service and then sends
+             * them back to the Activity via a callback.
+             */
+            @Override
+            public void getCurrentWeather(final long requestId,
+                                          final long deadline,
+                                          final String location,
+                                          final WeatherResults results)
+                throws RemoteException {
+                try {
+                    submit(requestId,
+                           new Runnable() {
+                               @Override
+                               public void run() {
+                                   lookup(requestId,
+                                          deadline,
+                                          location,
+                                          results);
+                               }
+                           });
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "Busy, rejecting location " + location
+                          + " " + mWorkerPool);
+                    // Invoke a one-way callback to tell the
+                    // WeatherActivity to try again later.
+                    results.sendError(requestId,
+                                      WeatherLookupException.describe(WeatherLookupException.Reason.BUSY,
+                                                                      location));
+                }
+            }
+
+            /**
+             * Implement the AIDL WeatherRequest
+             * getCurrentWeatherBatch() method, which hands the batch
+             * to a worker that streams the results back to the
+             * Activity as they become available: cached locations
+             * first, then each fetched one.
+             */
+            @Override
+            public void getCurrentWeatherBatch(final long requestId,
+                                               final long deadline,
+                                               final List<String> locations,
+                                               final WeatherResults results)
+                throws RemoteException {
+                try {
+                    submit(requestId,
+                           new Runnable() {
+                               @Override
+                               public void run() {
+                                   lookupBatch(requestId,
+                                               deadline,
+                                               locations,
+                                               results);
+                               }
+                           });
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "Busy, rejecting batch of " + locations.size()
+                          + " locations " + mWorkerPool);
+                    results.sendError(requestId,
+                                      WeatherLookupException.describe(WeatherLookupException.Reason.BUSY,
+                                                                      locations.size() + " locations"));
+                }
+            }
+
+            /**
+             * Implement the AIDL WeatherRequest cancel() method.  A
+             * queued request is removed from the worker pool; a
+             * running one is interrupted and its upstream fetch, if
+             * any, aborted, which keeps it from sending results.
+             */
+            @Override
+            public void cancel(long requestId) throws RemoteException {
+                final Future<?> request =
+                    mRequests.remove(requestKey(requestId));
+                if (request == null)
+                    return;
+                request.cancel(true);
+                if (request instanceof Runnable)
+                    mWorkerPool.removeTask((Runnable) request);
+                Log.d(TAG, "Cancelled request " + requestId);
+            }
+
+            /**
+             * Implement the AIDL WeatherRequest subscribe() method.
+             * The locations are refreshed on WeatherSubscriptions'
+             * own thread, shared by all subscribers.
              */
             @Override
-            public void getCurrentWeather(String location, WeatherResults results) throws RemoteException {
+            public void subscribe(List<String> locations,
+                                  WeatherResults results)
+                throws RemoteException {
+                mSubscriptions.subscribe(locations, results);
+            }
+
+            /**
+             * Implement the AIDL WeatherRequest unsubscribe() method.
+             */
+            @Override
+            public void unsubscribe(WeatherResults results)
+                throws RemoteException {
+                mSubscriptions.unsubscribe(results);
+            }
+
+            /**
+             * Implement the AIDL WeatherRequest
+             * registerCacheListener() method.
+             */
+            @Override
+            public void registerCacheListener(WeatherResults results)
+                throws RemoteException {
+                mCacheListeners.register(results);
+            }
+
+            /**
+             * Implement the AIDL WeatherRequest
+             * unregisterCacheListener() method.
+             */
+            @Override
+            public void unregisterCacheListener(WeatherResults results)
+                throws RemoteException {
+                mCacheListeners.unregister(results);
+            }
+        };
+
+    /**
+     * Run @a lookup on the worker pool as the request with @a
+     * requestId, so it can be cancelled until it completes.
+     *
+     * @throws RejectedExecutionException If the pool's queue is full.
+     */
+    private void submit(long requestId,
+                        Runnable lookup) {
+        final Long key = requestKey(requestId);
+        final FutureTask<Void> request =
+            new WeatherWebService.AbortableTask<Void>(lookup, null) {
+                @Override
+                protected void done() {
+                    mRequests.remove(key, this);
+                }
+            };
+        mRequests.put(key, request);
+        try {
+            mWorkerPool.execute(request);
+        } catch (RejectedExecutionException e) {
+            mRequests.remove(key, request);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The key of the calling client's request with @a
+     *         requestId.  Each client numbers its requests itself, so
+     *         the key includes the caller's uid.  Must be called on
+     *         the Binder thread of the call.
+     */
+    private static Long requestKey(long requestId) {
+        return ((long) Binder.getCallingUid() << 32) ^ requestId;
+    }
+
+    /**
+     * @return True if the current request has been cancelled, in
+     *         which case it mustn't send anything.
+     */
+    private static boolean isCancelled() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Look up the weather for @a location and send it back via @a
+     * results.  Runs on a worker thread.
+     */
+    private void lookup(long requestId,
+                        long deadline,
+                        String location,
+                        WeatherResults results) {
+        try {
+            try {
                 // Call the Weather Web service to get the weather
                 // information for the location.
                 final WeatherData weatherResult =
-                        WeatherWebService.getResult(location);
-
-                if (weatherResult != null) {
-                    Log.d(TAG, "result for location: "
-                            + location);
-                    // Invoke a one-way callback to send weather info
-                    // to the WeatherActivity.
-                    results.sendResults(weatherResult);
-                } else
-                    // Invoke a one-way callback to send an error
-                    // message back to the WeatherActivity.
-                    results.sendError("No weather for "
-                            + location
-                            + " found");
+                    WeatherWebService.lookup(location, deadline);
+
+                Log.d(TAG, "result for location: "
+                      + location);
+                // Invoke a one-way callback to send weather info to
+                // the WeatherActivity.
+                if (!isCancelled())
+                    results.sendResults(requestId, weatherResult);
+            } catch (WeatherLookupException e) {
+                // Invoke a one-way callback to send an error message
+                // back to the WeatherActivity.
+                if (!isCancelled())
+                    results.sendError(requestId,
+                                      WeatherLookupException.describe(e.getReason(),
+                                                                      location));
             }
-        };
+        } catch (RemoteException e) {
+            Log.d(TAG, "Unable to send result for location " + location
+                  + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Look up the weather for every location in @a locations and
+     * stream it back via @a results.  Runs on a worker thread.  A
+     * batch whose deadline passed while it was queued is answered
+     * with an error right away.
+     */
+    private void lookupBatch(final long requestId,
+                             long deadline,
+                             List<String> locations,
+                             final WeatherResults results) {
+        if (SystemClock.elapsedRealtime() >= deadline) {
+            try {
+                results.sendError(requestId,
+                                  WeatherLookupException.describe(WeatherLookupException.Reason.DEADLINE_EXCEEDED,
+                                                                  locations.size() + " locations"));
+            } catch (RemoteException e) {
+                Log.d(TAG, "Unable to send error: " + e.getMessage());
+            }
+            return;
+        }
+
+        WeatherWebService.lookupBatch(locations,
+                                      deadline,
+                                      new WeatherWebService.BatchListener() {
+                @Override
+                public void onResults(List<WeatherData> weatherResults) {
+                    if (isCancelled())
+                        return;
+                    try {
+                        // Invoke a one-way callback to send weather
+                        // info to the WeatherActivity.
+                        results.sendPartialResults(requestId,
+                                                   new WeatherDataList(weatherResults));
+                    } catch (RemoteException e) {
+                        Log.d(TAG, "Unable to send partial results: "
+                              + e.getMessage());
+                    }
+                }
+
+                @Override
+                public void onComplete(int found, List<String> errors) {
+                    Log.d(TAG, "results for " + found + " locations, "
+                          + errors.size() + " failed");
+                    if (isCancelled())
+                        return;
+                    try {
+                        results.sendComplete(requestId, found, errors);
+                    } catch (RemoteException e) {
+                        Log.d(TAG, "Unable to send completion: "
+                              + e.getMessage());
+                    }
+                }
+            });
+    }
+
+    /**
+     * Hook method called by "adb shell dumpsys activity service
+     * WeatherServiceAsync".  Prints the worker pool's metrics: its
+     * queue depth and how long lookups waited for a worker.
+     */
+    @Override
+    protected void dump(FileDescriptor fd,
+                        PrintWriter writer,
+                        String[] args) {
+        writer.println(mWorkerPool);
+    }
 }
@@ -1,7 +1,11 @@
 package vandy.mooc.services;
 
+import java.util.List;
+
 import vandy.mooc.aidl.WeatherCall;
 import vandy.mooc.aidl.WeatherData;
+import vandy.mooc.aidl.WeatherDataList;
+import vandy.mooc.utils.WeatherLookupException;
 import vandy.mooc.utils.WeatherWebService;
 
 import android.content.Context;
@@ -41,6 +45,18 @@ public class WeatherServiceSync extends LifecycleLoggingService {
                           WeatherServiceSync.class);
     }
 
+    /**
+     * Hook method called when the Service is created.  Opens the
+     * persistent weather cache so this process can serve what earlier
+     * processes fetched.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        WeatherWebService.openPersistentCache(getCacheDir());
+    }
+
     /**
      * Called when a client (e.g., WeatherActivity) calls
      * bindService() with the proper Intent.  Returns the
@@ -66,23 +82,42 @@ public class WeatherServiceSync extends LifecycleLoggingService {
         new WeatherCall.Stub() {
 
             @Override
-            public WeatherData getCurrentWeather(String weather) throws RemoteException {
-                final WeatherData weatherResults =
-                        WeatherWebService.getResult(weather);
+            public WeatherData getCurrentWeather(String weather,
+                                                 List<String> errors,
+                                                 long deadline) throws RemoteException {
+                try {
+                    final WeatherData weatherResults =
+                        WeatherWebService.lookup(weather, deadline);
 
-                if (weatherResults != null) {
                     Log.d(TAG, "results for weather: "
                             + weather);
 
                     // Return the list of weather expansions back to the
                     // WeatherActivity.
                     return weatherResults;
-                } else {
-                    // Create a zero-sized weatherResults object to
-                    // indicate to the caller that the weather had no
-                    // expansions.
+                } catch (WeatherLookupException e) {
+                    // Tell the caller why there are no results.
+                    Log.d(TAG, e.getMessage());
+                    errors.add(WeatherLookupException.describe(e.getReason(),
+                                                               weather));
                     return null;
                 }
             }
+
+            @Override
+            public WeatherDataList getCurrentWeatherBatch(List<String> locations,
+                                                          List<String> errors,
+                                                          long deadline)
+                throws RemoteException {
+                final List<WeatherData> weatherResults =
+                    WeatherWebService.lookupBatch(locations,
+                                                  errors,
+                                                  deadline);
+
+                Log.d(TAG, "results for " + locations.size()
+                      + " weathers");
+
+                return new WeatherDataList(weatherResults);
+            }
         };
 }
@@ -0,0 +1,229 @@
+package vandy.mooc.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import vandy.mooc.aidl.WeatherData;
+import vandy.mooc.aidl.WeatherDataList;
+import vandy.mooc.aidl.WeatherResults;
+import vandy.mooc.utils.WeatherWebService;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * @class WeatherSubscriptions
+ *
+ * @brief Keeps the locations watched by subscribed clients up to date
+ *        and pushes their weather to each client whenever it changes,
+ *        so clients needn't poll.
+ *
+ *        Every watched location is looked up once per tick, no
+ *        matter how many clients watch it, and the lookups of one
+ *        tick run as a single batch.  Since WeatherWebService caches
+ *        what it fetches, a tick only goes upstream for locations
+ *        whose weather has expired.  Each client is sent just the
+ *        locations whose weather differs from what it was last sent.
+ *
+ *        Subscribers are kept in a RemoteCallbackList, so a client
+ *        that dies is dropped without having to unsubscribe.
+ */
+public class WeatherSubscriptions {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG = WeatherSubscriptions.class.getSimpleName();
+
+    /**
+     * Number of milliseconds between refreshes of the watched
+     * locations.
+     */
+    private final static long REFRESH_PERIOD = 15000;
+
+    /**
+     * Number of milliseconds a refresh may take.
+     */
+    private final static long REFRESH_TIMEOUT = 10000;
+
+    /**
+     * The subscribed clients, each with its Subscription as cookie.
+     */
+    private final RemoteCallbackList<WeatherResults> mSubscribers =
+        new RemoteCallbackList<WeatherResults>();
+
+    /**
+     * Runs the refreshes, one at a time.
+     */
+    private final ScheduledThreadPoolExecutor mExecutor =
+        new ScheduledThreadPoolExecutor(1,
+                                        new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                                               "WeatherSubscriptions");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * True once the periodic refresh has been scheduled.
+     */
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+
+    /**
+     * Watch @a locations for @a subscriber, replacing whatever it
+     * watched before.  The subscriber is sent the current weather of
+     * the locations right away, and then every change.
+     */
+    public void subscribe(List<String> locations,
+                          WeatherResults subscriber) {
+        final Set<String> aliases = new LinkedHashSet<String>();
+        for (String location : locations)
+            aliases.add(WeatherWebService.canonicalize(location));
+
+        // Registering again doesn't replace the cookie.
+        mSubscribers.unregister(subscriber);
+        mSubscribers.register(subscriber,
+                              new Subscription(aliases));
+        Log.d(TAG, "Subscribed to " + aliases);
+
+        if (mStarted.compareAndSet(false, true))
+            mExecutor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh();
+                    }
+                },
+                REFRESH_PERIOD,
+                REFRESH_PERIOD,
+                TimeUnit.MILLISECONDS);
+
+        // Send the new subscriber what's known now rather than make
+        // it wait for the next tick.
+        mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            });
+    }
+
+    /**
+     * Stop pushing updates to @a subscriber.
+     */
+    public void unsubscribe(WeatherResults subscriber) {
+        mSubscribers.unregister(subscriber);
+    }
+
+    /**
+     * Drop every subscriber and stop refreshing.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        mSubscribers.kill();
+    }
+
+    /**
+     * Look up every watched location once and send each subscriber
+     * the weather that changed since it was last sent.  Runs on the
+     * executor's thread, so refreshes never overlap.  The lookups
+     * block, so they're done between two broadcasts rather than
+     * during one, which would keep clients from subscribing.
+     */
+    private void refresh() {
+        // Look up each watched location once, for all the
+        // subscribers watching it.
+        final Set<String> watched = new LinkedHashSet<String>();
+        int count = mSubscribers.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++)
+                watched.addAll(((Subscription) mSubscribers.getBroadcastCookie(i)).mAliases);
+        } finally {
+            mSubscribers.finishBroadcast();
+        }
+        if (watched.isEmpty())
+            return;
+
+        // Polling mustn't make the watched cities look popular to
+        // the cache.
+        final List<String> aliases = new ArrayList<String>(watched);
+        final List<String> errors = new ArrayList<String>(aliases.size());
+        final List<WeatherData> results =
+            WeatherWebService.refreshBatch(aliases,
+                                           errors,
+                                           SystemClock.elapsedRealtime()
+                                           + REFRESH_TIMEOUT);
+        final Map<String, WeatherData> current =
+            new HashMap<String, WeatherData>();
+        for (int i = 0; i < aliases.size(); i++)
+            if (results.get(i) != null)
+                current.put(aliases.get(i), results.get(i));
+
+        // Subscribers may have come or gone meanwhile.  A new one is
+        // sent the rest by the refresh its subscribe() started.
+        count = mSubscribers.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                final Subscription subscription =
+                    (Subscription) mSubscribers.getBroadcastCookie(i);
+                final List<WeatherData> updates =
+                    subscription.changes(current);
+                if (updates.isEmpty())
+                    continue;
+                try {
+                    mSubscribers.getBroadcastItem(i).sendUpdates(new WeatherDataList(updates));
+                } catch (RemoteException e) {
+                    // The RemoteCallbackList drops a dead client.
+                    Log.d(TAG, "Unable to send updates: " + e.getMessage());
+                }
+            }
+        } finally {
+            mSubscribers.finishBroadcast();
+        }
+        Log.d(TAG, "Refreshed " + aliases.size() + " locations for "
+              + count + " subscribers");
+    }
+
+    /**
+     * The locations a subscriber watches, and the weather it was last
+     * sent for each.  Only used on the executor's thread.
+     */
+    private static class Subscription {
+        final Set<String> mAliases;
+        final Map<String, WeatherData> mSent =
+            new HashMap<String, WeatherData>();
+
+        Subscription(Set<String> aliases) {
+            mAliases = aliases;
+        }
+
+        /**
+         * @return The weather in @a current that this subscriber
+         *         watches and hasn't been sent yet, which is recorded
+         *         as sent.
+         */
+        List<WeatherData> changes(Map<String, WeatherData> current) {
+            final List<WeatherData> changes = new ArrayList<WeatherData>();
+            for (String alias : mAliases) {
+                final WeatherData weatherData = current.get(alias);
+                if (weatherData != null
+                    && !weatherData.equals(mSent.get(alias))) {
+                    mSent.put(alias, weatherData);
+                    changes.add(weatherData);
+                }
+            }
+            return changes;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package vandy.mooc.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class BoundedWorkerPool
+ *
+ * @brief A fixed-size thread pool whose queue holds at most a given
+ *        number of tasks.  Once the queue is full execute() throws
+ *        RejectedExecutionException right away, so callers can push
+ *        back on a burst instead of piling up unbounded work.
+ *
+ *        The pool keeps metrics on its queue: the current and peak
+ *        depth, how many tasks were rejected, and how long accepted
+ *        tasks waited before a worker picked them up.
+ */
+public class BoundedWorkerPool extends ThreadPoolExecutor {
+    /**
+     * Number of seconds an idle worker lingers before it exits.
+     */
+    private final static long KEEP_ALIVE_TIME = 30;
+
+    /**
+     * Maximum number of tasks waiting for a worker.
+     */
+    private final int mQueueCapacity;
+
+    /**
+     * Queue metrics.
+     */
+    private final AtomicLong mAcceptedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mStartedCount = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final AtomicInteger mPeakQueueDepth = new AtomicInteger();
+
+    /**
+     * Constructor creates the pool.  Workers are started on demand
+     * and exit when idle, so an unused pool costs nothing.
+     *
+     * @param name Name given to the worker threads.
+     * @param threads Number of workers.
+     * @param queueCapacity Maximum number of tasks waiting for a
+     *        worker.
+     */
+    public BoundedWorkerPool(final String name,
+                             int threads,
+                             int queueCapacity) {
+        super(threads,
+              threads,
+              KEEP_ALIVE_TIME,
+              TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable>(queueCapacity),
+              new ThreadFactory() {
+                  private final AtomicInteger mCount = new AtomicInteger();
+
+                  @Override
+                  public Thread newThread(Runnable runnable) {
+                      return new Thread(runnable,
+                                        name + "-" + mCount.incrementAndGet());
+                  }
+              },
+              new ThreadPoolExecutor.AbortPolicy());
+        allowCoreThreadTimeOut(true);
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Run @a command on a worker, or throw RejectedExecutionException
+     * if every worker is busy and the queue is full.
+     */
+    @Override
+    public void execute(Runnable command) {
+        try {
+            super.execute(new TimedTask(command));
+        } catch (RejectedExecutionException e) {
+            mRejectedCount.incrementAndGet();
+            throw e;
+        }
+        mAcceptedCount.incrementAndGet();
+
+        final int depth = getQueue().size();
+        int peak;
+        while (depth > (peak = mPeakQueueDepth.get())
+               && !mPeakQueueDepth.compareAndSet(peak, depth))
+            continue;
+    }
+
+    /**
+     * Record how long the task about to run waited in the queue.
+     */
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+
+        final long wait = System.nanoTime() - ((TimedTask) runnable).mQueuedAt;
+        mStartedCount.incrementAndGet();
+        mTotalWaitNanos.addAndGet(wait);
+        long max;
+        while (wait > (max = mMaxWaitNanos.get())
+               && !mMaxWaitNanos.compareAndSet(max, wait))
+            continue;
+    }
+
+    /**
+     * Remove @a task, as passed to execute(), from the queue if it
+     * hasn't started yet, so a cancelled task frees its slot at once.
+     * Unlike remove(), which ThreadPoolExecutor itself calls with the
+     * wrapped tasks it queued, this looks the task up by what it
+     * wraps.
+     *
+     * @return True if the task was removed.
+     */
+    public boolean removeTask(Runnable task) {
+        for (Runnable queued : getQueue())
+            if (((TimedTask) queued).mTask == task)
+                return super.remove(queued);
+        return false;
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /**
+     * @return The number of tasks currently waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public int getPeakQueueDepth() {
+        return mPeakQueueDepth.get();
+    }
+
+    public long getAcceptedCount() {
+        return mAcceptedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return The average number of milliseconds a task waited for a
+     *         worker.
+     */
+    public double getAverageWaitTime() {
+        final long started = mStartedCount.get();
+        return started == 0
+            ? 0
+            : mTotalWaitNanos.get() / 1e6 / started;
+    }
+
+    /**
+     * @return The longest number of milliseconds a task waited for a
+     *         worker.
+     */
+    public double getMaxWaitTime() {
+        return mMaxWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * Provides a printable summary of the queue metrics.
+     */
+    @Override
+    public String toString() {
+        return "BoundedWorkerPool [active=" + getActiveCount()
+            + ", queueDepth=" + getQueueDepth()
+            + ", peakQueueDepth=" + getPeakQueueDepth()
+            + ", queueCapacity=" + mQueueCapacity
+            + ", accepted=" + getAcceptedCount()
+            + ", rejected=" + getRejectedCount()
+            + ", averageWaitMs=" + getAverageWaitTime()
+            + ", maxWaitMs=" + getMaxWaitTime() + "]";
+    }
+
+    /**
+     * Wraps a task with the time it was queued.
+     */
+    private static class TimedTask implements Runnable {
+        private final Runnable mTask;
+        private final long mQueuedAt = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+    }
+}
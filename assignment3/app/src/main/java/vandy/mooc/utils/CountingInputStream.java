@@ -0,0 +1,57 @@
+package vandy.mooc.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @class CountingInputStream
+ *
+ * @brief Counts the bytes read through it, e.g., to compare the bytes
+ *        received on the wire with the bytes they decompress to.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private long mCount;
+
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1)
+            mCount++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int n = super.read(b, off, len);
+        if (n > 0)
+            mCount += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = super.skip(n);
+        mCount += skipped;
+        return skipped;
+    }
+
+    /**
+     * Marking would let bytes be counted twice.
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return The number of bytes read so far.
+     */
+    public long getCount() {
+        return mCount;
+    }
+}
@@ -0,0 +1,96 @@
+package vandy.mooc.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * @class ExpirySweeper
+ *
+ * @brief A single low-priority daemon thread that removes expired
+ *        entries from every WeatherWebService.Cache once a tick, so
+ *        entries that are never read again don't pin memory.  Caches
+ *        are held weakly, so registering one doesn't keep it alive.
+ */
+public class ExpirySweeper {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG = ExpirySweeper.class.getCanonicalName();
+
+    /**
+     * Milliseconds between sweeps.
+     */
+    public final static long TICK = 1000;
+
+    /**
+     * The registered caches.
+     */
+    private final static CopyOnWriteArrayList<WeakReference<WeatherWebService.Cache<?, ?>>> sCaches =
+        new CopyOnWriteArrayList<WeakReference<WeatherWebService.Cache<?, ?>>>();
+
+    /**
+     * The sweeper thread, started by the first registration.
+     */
+    private static Thread sThread;
+
+    /**
+     * Sweep @a cache on every tick from now on.
+     */
+    public static synchronized void register(WeatherWebService.Cache<?, ?> cache) {
+        sCaches.add(new WeakReference<WeatherWebService.Cache<?, ?>>(cache));
+
+        if (sThread == null) {
+            sThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        sweep();
+                    }
+                },
+                "ExpirySweeper");
+            sThread.setDaemon(true);
+            sThread.start();
+        }
+    }
+
+    /**
+     * Expire the entries of every registered cache, once a tick.
+     */
+    private static void sweep() {
+        while (true) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (Iterator<WeakReference<WeatherWebService.Cache<?, ?>>> iterator =
+                     sCaches.iterator();
+                 iterator.hasNext();) {
+                final WeakReference<WeatherWebService.Cache<?, ?>> reference =
+                    iterator.next();
+                final WeatherWebService.Cache<?, ?> cache = reference.get();
+                if (cache == null)
+                    sCaches.remove(reference);
+                else {
+                    try {
+                        cache.expireEntries();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Sweeping " + cache + " failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private ExpirySweeper() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,127 @@
+package vandy.mooc.utils;
+
+/**
+ * @class FrequencySketch
+ *
+ * @brief A compact count-min sketch that estimates how often each key
+ *        has been seen recently.  Each of the four rows packs sixteen
+ *        4-bit counters into a long, so the sketch takes a few bytes
+ *        per cache entry no matter how many distinct keys go by.
+ *
+ *        Once the number of recorded events reaches the sample size
+ *        every counter is halved, so estimates follow recent traffic
+ *        rather than all-time popularity.  Not thread-safe; callers
+ *        synchronize.
+ */
+public class FrequencySketch {
+    /**
+     * Seeds used to derive one index per row from a key's hash.
+     */
+    private static final int[] SEEDS = {
+        0x97cb3127, 0xb7a2d8b1, 0x4b9e8f53, 0x6ec3f1a5
+    };
+
+    /**
+     * Clears the high bit of every 4-bit counter after a shift.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * Largest value a 4-bit counter holds.
+     */
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * The counters, one array per row.
+     */
+    private final long[][] mRows;
+
+    /**
+     * Number of counters per row, minus one (a power of two, minus
+     * one).
+     */
+    private final int mCounterMask;
+
+    /**
+     * Number of events recorded before the counters are halved.
+     */
+    private final int mSampleSize;
+
+    /**
+     * Number of events recorded since the last halving.
+     */
+    private int mSize;
+
+    /**
+     * Constructor sizes the sketch for a cache of @a maxEntries.
+     */
+    public FrequencySketch(int maxEntries) {
+        int counters = Integer.highestOneBit(Math.max(maxEntries, 16));
+        if (counters < maxEntries)
+            counters <<= 1;
+        mCounterMask = counters - 1;
+        mRows = new long[SEEDS.length][counters / 16];
+        mSampleSize = 10 * counters;
+    }
+
+    /**
+     * Record one occurrence of @a key.
+     */
+    public void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < mRows.length; row++)
+            added |= incrementAt(row, index(hash, row));
+        if (added && ++mSize >= mSampleSize)
+            reset();
+    }
+
+    /**
+     * @return The estimated number of recent occurrences of @a key,
+     *         between 0 and 15.
+     */
+    public int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < mRows.length; row++)
+            frequency = Math.min(frequency,
+                                 countAt(row, index(hash, row)));
+        return frequency;
+    }
+
+    private boolean incrementAt(int row, int counter) {
+        final int word = counter >>> 4;
+        final int shift = (counter & 15) << 2;
+        if (((mRows[row][word] >>> shift) & 0xfL) == MAX_COUNT)
+            return false;
+        mRows[row][word] += 1L << shift;
+        return true;
+    }
+
+    private int countAt(int row, int counter) {
+        return (int) ((mRows[row][counter >>> 4]
+                       >>> ((counter & 15) << 2)) & 0xfL);
+    }
+
+    /**
+     * Halve every counter, so old popularity fades.
+     */
+    private void reset() {
+        for (long[] row : mRows)
+            for (int i = 0; i < row.length; i++)
+                row[i] = (row[i] >>> 1) & RESET_MASK;
+        mSize /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 17;
+        return h & mCounterMask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+}
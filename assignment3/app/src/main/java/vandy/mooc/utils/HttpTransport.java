@@ -0,0 +1,55 @@
+package vandy.mooc.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * @class HttpTransport
+ *
+ * @brief Sends the GET requests of WeatherWebService, so how they
+ *        reach the web service can be swapped, e.g., for a pool of
+ *        persistent connections.
+ */
+public interface HttpTransport {
+    /**
+     * Send a GET request for @a url with @a headers and return the
+     * response once its status line and headers have been read.
+     *
+     * @param connectTimeout Milliseconds allowed to connect.
+     * @param readTimeout Milliseconds allowed for each read.
+     */
+    Response get(URL url,
+                 Map<String, String> headers,
+                 int connectTimeout,
+                 int readTimeout) throws IOException;
+
+    /**
+     * Close the connection of the request @a thread is sending or
+     * reading the response of, if any, so the blocked connect or read
+     * fails at once rather than when its timeout expires.  Interrupting
+     * @a thread doesn't do that.  Safe to call from any thread.
+     */
+    void abort(Thread thread);
+
+    /**
+     * A response, which must be closed once it's been read so its
+     * connection can be reused or released.
+     */
+    interface Response extends Closeable {
+        int getStatus();
+
+        /**
+         * @return The value of the header @a name, which is matched
+         *         regardless of case, or null if there is none.
+         */
+        String getHeader(String name);
+
+        /**
+         * @return The body, which needn't be read to the end.
+         */
+        InputStream getBody() throws IOException;
+    }
+}
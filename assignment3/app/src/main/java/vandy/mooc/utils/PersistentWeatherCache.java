@@ -0,0 +1,325 @@
+package vandy.mooc.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import vandy.mooc.aidl.WeatherData;
+
+/**
+ * @class PersistentWeatherCache
+ *
+ * @brief A weather cache tier backed by a memory-mapped file, so a
+ *        restarted process can serve hits right away without reading
+ *        or deserializing the whole file first.
+ *
+ *        The file is a small header followed by a fixed number of
+ *        fixed-size records.  The record table doubles as an
+ *        open-addressed hash index: a key hashes to a slot and is
+ *        found by probing at most MAX_PROBES neighbouring slots, so
+ *        lookups and stores are O(1).  When all probed slots are
+ *        taken by other keys the one that expires first is
+ *        overwritten.
+ *
+ *        A record's state word is set to STATE_WRITING while its
+ *        fields are written and to STATE_USED afterwards, so a record
+ *        torn by the process being killed mid-write is ignored, but
+ *        still probed past, leaving the keys stored beyond it in
+ *        the probe sequence reachable.
+ */
+public class PersistentWeatherCache {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG = PersistentWeatherCache.class.getCanonicalName();
+
+    /**
+     * Identifies the file format.  Bump VERSION whenever the record
+     * layout changes, so old files are discarded rather than misread.
+     */
+    private final static int MAGIC = 0x57544852;
+    private final static int VERSION = 3;
+
+    /**
+     * Maximum number of slots probed for a key.
+     */
+    private final static int MAX_PROBES = 8;
+
+    /**
+     * Maximum number of characters stored for a key or a location
+     * name.  Longer keys or names are not persisted.
+     */
+    public final static int MAX_KEY_CHARS = 64;
+    public final static int MAX_NAME_CHARS = 64;
+
+    /**
+     * Layout of the metadata array filled in by get().
+     */
+    public final static int METADATA_EXPIRES_AT = 0;
+    public final static int METADATA_CITY_ID = 1;
+    public final static int METADATA_SIZE = 2;
+
+    /**
+     * Values of a record's state word.
+     */
+    private final static int STATE_EMPTY = 0;
+    private final static int STATE_USED = 1;
+    private final static int STATE_WRITING = 2;
+
+    /**
+     * Layout of the file header.
+     */
+    private final static int HEADER_MAGIC = 0;
+    private final static int HEADER_VERSION = 4;
+    private final static int HEADER_CAPACITY = 8;
+    private final static int HEADER_RECORD_SIZE = 12;
+    private final static int HEADER_SIZE = 64;
+
+    /**
+     * Layout of a record, as offsets from the start of the record.
+     */
+    private final static int REC_STATE = 0;
+    private final static int REC_HASH = 4;
+    private final static int REC_KEY_LENGTH = 8;
+    private final static int REC_KEY = REC_KEY_LENGTH + 2;
+    private final static int REC_NAME_LENGTH = REC_KEY + 2 * MAX_KEY_CHARS;
+    private final static int REC_NAME = REC_NAME_LENGTH + 2;
+    private final static int REC_CITY_ID = align(REC_NAME + 2 * MAX_NAME_CHARS);
+    private final static int REC_SPEED = REC_CITY_ID + 8;
+    private final static int REC_DEG = REC_SPEED + 8;
+    private final static int REC_TEMP = REC_DEG + 8;
+    private final static int REC_HUMIDITY = REC_TEMP + 8;
+    private final static int REC_SUNRISE = REC_HUMIDITY + 8;
+    private final static int REC_SUNSET = REC_SUNRISE + 8;
+    private final static int REC_EXPIRES_AT = REC_SUNSET + 8;
+    private final static int RECORD_SIZE = REC_EXPIRES_AT + 8;
+
+    /**
+     * Number of record slots, always a power of two.
+     */
+    private final int mCapacity;
+
+    /**
+     * The mapped file.  Guarded by "this".
+     */
+    private final MappedByteBuffer mBuffer;
+
+    /**
+     * Constructor opens (creating if needed) the cache file and maps
+     * it into memory.  A file with an unexpected header or size is
+     * cleared.
+     *
+     * @param file The backing file.
+     * @param capacity Requested number of records, rounded up to a
+     *        power of two.
+     */
+    public PersistentWeatherCache(File file, int capacity)
+        throws IOException {
+        int slots = Integer.highestOneBit(Math.max(capacity, MAX_PROBES));
+        if (slots < capacity)
+            slots <<= 1;
+        mCapacity = slots;
+
+        final long size = HEADER_SIZE + (long) mCapacity * RECORD_SIZE;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = raf.length() == size
+                && raf.readInt() == MAGIC
+                && raf.readInt() == VERSION
+                && raf.readInt() == mCapacity
+                && raf.readInt() == RECORD_SIZE;
+
+            if (!valid) {
+                Log.d(TAG, "Initializing persistent cache " + file);
+                // Truncating first zeroes every record.
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                           0,
+                                           size);
+            if (!valid) {
+                mBuffer.putInt(HEADER_MAGIC, MAGIC);
+                mBuffer.putInt(HEADER_VERSION, VERSION);
+                mBuffer.putInt(HEADER_CAPACITY, mCapacity);
+                mBuffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+            }
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The WeatherData stored for @a key, or null if there is
+     *         none or it expired more than @a staleTime milliseconds
+     *         ago.  @a metadata, if not null, receives its
+     *         expiration time and city id at METADATA_EXPIRES_AT and
+     *         METADATA_CITY_ID.
+     */
+    public synchronized WeatherData get(String key,
+                                        long staleTime,
+                                        long[] metadata) {
+        if (key.length() > MAX_KEY_CHARS)
+            return null;
+
+        final int slot = find(key, hash(key));
+        if (slot < 0)
+            return null;
+
+        final int rec = offset(slot);
+        final long expires = mBuffer.getLong(rec + REC_EXPIRES_AT);
+        if (System.currentTimeMillis() >= expires + staleTime)
+            return null;
+
+        if (metadata != null) {
+            metadata[METADATA_EXPIRES_AT] = expires;
+            metadata[METADATA_CITY_ID] = mBuffer.getLong(rec + REC_CITY_ID);
+        }
+        return new WeatherData(mBuffer.getLong(rec + REC_CITY_ID),
+                               readString(rec + REC_NAME_LENGTH),
+                               mBuffer.getDouble(rec + REC_SPEED),
+                               mBuffer.getDouble(rec + REC_DEG),
+                               mBuffer.getDouble(rec + REC_TEMP),
+                               mBuffer.getLong(rec + REC_HUMIDITY),
+                               mBuffer.getLong(rec + REC_SUNRISE),
+                               mBuffer.getLong(rec + REC_SUNSET));
+    }
+
+    /**
+     * Store @a weatherData of the city with @a cityId for @a key,
+     * fresh until @a expiresAt (in System.currentTimeMillis() time).
+     *
+     * @return false if the key or name is too long to be stored.
+     */
+    public synchronized boolean put(String key,
+                                    long cityId,
+                                    WeatherData weatherData,
+                                    long expiresAt) {
+        final String name = weatherData.getmName() != null
+            ? weatherData.getmName()
+            : "";
+        if (key.length() > MAX_KEY_CHARS
+            || name.length() > MAX_NAME_CHARS)
+            return false;
+
+        final int hash = hash(key);
+        int slot = find(key, hash);
+        if (slot < 0)
+            slot = victim(hash);
+
+        final int rec = offset(slot);
+        mBuffer.putInt(rec + REC_STATE, STATE_WRITING);
+        mBuffer.putInt(rec + REC_HASH, hash);
+        writeString(rec + REC_KEY_LENGTH, key);
+        writeString(rec + REC_NAME_LENGTH, name);
+        mBuffer.putLong(rec + REC_CITY_ID, cityId);
+        mBuffer.putDouble(rec + REC_SPEED, weatherData.getmSpeed());
+        mBuffer.putDouble(rec + REC_DEG, weatherData.getmDeg());
+        mBuffer.putDouble(rec + REC_TEMP, weatherData.getmTemp());
+        mBuffer.putLong(rec + REC_HUMIDITY, weatherData.getmHumidity());
+        mBuffer.putLong(rec + REC_SUNRISE, weatherData.getmSunrise());
+        mBuffer.putLong(rec + REC_SUNSET, weatherData.getmSunset());
+        mBuffer.putLong(rec + REC_EXPIRES_AT, expiresAt);
+        mBuffer.putInt(rec + REC_STATE, STATE_USED);
+        return true;
+    }
+
+    /**
+     * @return The slot holding @a key, or -1 if it isn't stored.
+     */
+    private int find(String key, int hash) {
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int slot = (hash + i) & (mCapacity - 1);
+            final int rec = offset(slot);
+            // Slots are never emptied once used, so an empty slot
+            // ends the probe sequence.  A slot that is being (or
+            // was torn while being) written holds no key but
+            // mustn't end it.
+            final int state = mBuffer.getInt(rec + REC_STATE);
+            if (state == STATE_EMPTY)
+                return -1;
+            if (state == STATE_USED
+                && mBuffer.getInt(rec + REC_HASH) == hash
+                && keyEquals(rec, key))
+                return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The slot to store a new key with @a hash in: the first
+     *         empty or torn slot in its probe sequence, or else the
+     *         one that expires first.
+     */
+    private int victim(int hash) {
+        int oldest = -1;
+        long oldestExpiresAt = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int slot = (hash + i) & (mCapacity - 1);
+            final int rec = offset(slot);
+            if (mBuffer.getInt(rec + REC_STATE) != STATE_USED)
+                return slot;
+            final long expiresAt = mBuffer.getLong(rec + REC_EXPIRES_AT);
+            if (expiresAt < oldestExpiresAt) {
+                oldestExpiresAt = expiresAt;
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * @return True if the record at @a rec holds @a key, compared
+     *         in place without allocating a String.
+     */
+    private boolean keyEquals(int rec, String key) {
+        final int length = mBuffer.getShort(rec + REC_KEY_LENGTH);
+        if (length != key.length())
+            return false;
+        for (int i = 0; i < length; i++)
+            if (mBuffer.getChar(rec + REC_KEY + 2 * i) != key.charAt(i))
+                return false;
+        return true;
+    }
+
+    private String readString(int position) {
+        final int length = mBuffer.getShort(position);
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = mBuffer.getChar(position + 2 + 2 * i);
+        return new String(chars);
+    }
+
+    private void writeString(int position, String value) {
+        mBuffer.putShort(position, (short) value.length());
+        for (int i = 0; i < value.length(); i++)
+            mBuffer.putChar(position + 2 + 2 * i, value.charAt(i));
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Spread the bits of the key's hash code, since the slot is taken
+     * from the low bits only.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return @a offset rounded up to a multiple of 8.
+     */
+    private static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+}
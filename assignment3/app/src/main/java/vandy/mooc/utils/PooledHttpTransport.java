@@ -0,0 +1,739 @@
+package vandy.mooc.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @class PooledHttpTransport
+ *
+ * @brief An HttpTransport that speaks HTTP/1.1 over plain sockets and
+ *        keeps a bounded pool of idle keep-alive connections, so a
+ *        request to a host it talked to recently skips connecting.
+ *
+ *        A response releases its connection to the pool when it's
+ *        closed.  The rest of its body is drained first, which is
+ *        what lets the next response be read from the same
+ *        connection; a body too long to drain, or one that isn't
+ *        delimited by Content-Length or chunked encoding, gets its
+ *        connection closed instead.  A pooled connection the server
+ *        has closed in the meantime is detected when the request on
+ *        it fails before any response arrives, and the request is
+ *        retried once on a new connection, which is safe since GETs
+ *        are idempotent.
+ *
+ *        Only http URLs are pooled; others, such as https, are handed
+ *        to a UrlConnectionTransport, as is every request while an
+ *        http proxy is configured.
+ */
+public class PooledHttpTransport implements HttpTransport {
+    /**
+     * Maximum number of bytes drained from a body that wasn't read
+     * to the end.  Reading more costs more than connecting anew.
+     */
+    private final static int MAX_DRAIN = 64 * 1024;
+
+    /**
+     * Maximum number of bytes in the status line or a header line, so
+     * a broken server can't make a response take unbounded memory.
+     */
+    private final static int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * Resolves host names, so a lookup can be given up on once the
+     * connect timeout expires.  InetAddress.getByName() can't be
+     * interrupted, so a thread stuck in it is left to finish.
+     */
+    private final static ThreadPoolExecutor sResolver =
+        new ThreadPoolExecutor(4,
+                               4,
+                               30,
+                               TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               new ThreadFactory() {
+                                   @Override
+                                   public Thread newThread(Runnable runnable) {
+                                       final Thread thread =
+                                           new Thread(runnable, "PooledHttpTransport-resolver");
+                                       thread.setDaemon(true);
+                                       return thread;
+                                   }
+                               });
+
+    static {
+        sResolver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Maximum number of idle connections kept, over all hosts.
+     */
+    private final int mMaxIdleConnections;
+
+    /**
+     * Milliseconds an idle connection is kept.  Servers close idle
+     * connections after a while, so one idle longer than that is
+     * likely dead.
+     */
+    private final long mKeepAliveTime;
+
+    /**
+     * Handles the URLs that aren't pooled.
+     */
+    private final HttpTransport mFallback = new UrlConnectionTransport();
+
+    /**
+     * Idle connections by "host:port", most recently used last.
+     * Guarded by "this", as are the metrics.
+     */
+    private final Map<String, ArrayDeque<Connection>> mIdle =
+        new HashMap<String, ArrayDeque<Connection>>();
+    private int mIdleCount;
+
+    /**
+     * The socket of the request each thread is sending or reading the
+     * response of, so it can be aborted.
+     */
+    private final ConcurrentHashMap<Thread, Socket> mActive =
+        new ConcurrentHashMap<Thread, Socket>();
+
+    /**
+     * Metrics.
+     */
+    private long mRequestCount;
+    private long mReusedCount;
+    private long mConnectCount;
+    private long mConnectNanos;
+    private long mRetryCount;
+
+    /**
+     * Constructor creates an empty pool.
+     *
+     * @param maxIdleConnections Maximum number of idle connections
+     *        kept, over all hosts.
+     * @param keepAliveTime Milliseconds an idle connection is kept.
+     */
+    public PooledHttpTransport(int maxIdleConnections,
+                               long keepAliveTime) {
+        mMaxIdleConnections = maxIdleConnections;
+        mKeepAliveTime = keepAliveTime;
+    }
+
+    @Override
+    public Response get(URL url,
+                        Map<String, String> headers,
+                        int connectTimeout,
+                        int readTimeout) throws IOException {
+        if (!"http".equals(url.getProtocol()) || usesProxy())
+            return mFallback.get(url, headers, connectTimeout, readTimeout);
+
+        final String host = url.getHost();
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        final String route = host + ":" + port;
+        final byte[] request = request(url, headers);
+
+        Connection connection = takeIdle(route);
+        if (connection != null) {
+            mActive.put(Thread.currentThread(), connection.mSocket);
+            try {
+                return send(connection, request, readTimeout);
+            } catch (SocketTimeoutException e) {
+                // The server is slow, not gone.
+                finish(connection);
+                throw e;
+            } catch (IOException e) {
+                // The server closed the connection while it was idle,
+                // unless the request was aborted.
+                if (!finish(connection))
+                    throw aborted(e);
+                synchronized (this) {
+                    mRetryCount++;
+                }
+            }
+        }
+
+        connection = connect(route, host, port, connectTimeout);
+        try {
+            return send(connection, request, readTimeout);
+        } catch (IOException e) {
+            if (!finish(connection))
+                throw aborted(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void abort(Thread thread) {
+        final Socket socket = mActive.remove(thread);
+        if (socket != null)
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+    }
+
+    /**
+     * Close @a connection after its request failed on the calling
+     * thread.
+     *
+     * @return False if the request was aborted.
+     */
+    private boolean finish(Connection connection) {
+        connection.close();
+        return mActive.remove(Thread.currentThread(), connection.mSocket);
+    }
+
+    private static InterruptedIOException aborted(IOException cause) {
+        final InterruptedIOException e =
+            new InterruptedIOException("Request aborted");
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Close every idle connection.
+     */
+    public void evictAll() {
+        synchronized (this) {
+            for (ArrayDeque<Connection> connections : mIdle.values())
+                for (Connection connection : connections)
+                    connection.close();
+            mIdle.clear();
+            mIdleCount = 0;
+        }
+    }
+
+    /**
+     * @return The most recently used idle connection to @a route
+     *         that isn't too old, or null if there is none.
+     */
+    private synchronized Connection takeIdle(String route) {
+        final ArrayDeque<Connection> connections = mIdle.get(route);
+        if (connections == null)
+            return null;
+
+        final long now = System.nanoTime();
+        Connection connection;
+        while ((connection = connections.pollLast()) != null) {
+            mIdleCount--;
+            if (now - connection.mIdleSince < mKeepAliveTime * 1000000L)
+                return connection;
+            connection.close();
+        }
+        return null;
+    }
+
+    /**
+     * Put @a connection back in the pool, making room by closing the
+     * oldest idle connection to its host, or any host, if the pool is
+     * full.
+     */
+    private synchronized void release(Connection connection) {
+        connection.mIdleSince = System.nanoTime();
+        ArrayDeque<Connection> connections = mIdle.get(connection.mRoute);
+        if (connections == null) {
+            connections = new ArrayDeque<Connection>();
+            mIdle.put(connection.mRoute, connections);
+        }
+
+        if (mIdleCount >= mMaxIdleConnections) {
+            ArrayDeque<Connection> victims = connections;
+            if (victims.isEmpty()) {
+                final Iterator<ArrayDeque<Connection>> iterator =
+                    mIdle.values().iterator();
+                do
+                    victims = iterator.next();
+                while (victims.isEmpty());
+            }
+            victims.pollFirst().close();
+            mIdleCount--;
+        }
+        connections.addLast(connection);
+        mIdleCount++;
+    }
+
+    private Connection connect(String route,
+                               String host,
+                               int port,
+                               int connectTimeout) throws IOException {
+        final long start = System.nanoTime();
+        final Socket socket = new Socket();
+        mActive.put(Thread.currentThread(), socket);
+        try {
+            socket.setTcpNoDelay(true);
+            // Resolving the host counts against the connect timeout.
+            final InetAddress address = resolve(host, connectTimeout);
+            final long elapsed = (System.nanoTime() - start) / 1000000L;
+            socket.connect(new InetSocketAddress(address, port),
+                           connectTimeout == 0
+                           ? 0
+                           : (int) Math.max(connectTimeout - elapsed, 1));
+        } catch (IOException e) {
+            socket.close();
+            if (!mActive.remove(Thread.currentThread(), socket))
+                throw aborted(e);
+            throw e;
+        }
+        synchronized (this) {
+            mConnectCount++;
+            mConnectNanos += System.nanoTime() - start;
+        }
+        return new Connection(route, socket);
+    }
+
+    /**
+     * @return The address of @a host, resolved within @a timeout
+     *         milliseconds, or without a limit if it's 0.
+     */
+    private static InetAddress resolve(final String host,
+                                       int timeout) throws IOException {
+        final Future<InetAddress> address =
+            sResolver.submit(new Callable<InetAddress>() {
+                    @Override
+                    public InetAddress call() throws IOException {
+                        return InetAddress.getByName(host);
+                    }
+                });
+        try {
+            return timeout == 0
+                ? address.get()
+                : address.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            address.cancel(true);
+            throw new SocketTimeoutException("Timed out resolving " + host);
+        } catch (InterruptedException e) {
+            address.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted resolving " + host);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Unable to resolve " + host, e.getCause());
+        }
+    }
+
+    /**
+     * @return True if an http proxy is configured.  Only
+     *         HttpURLConnection knows how to go through it.
+     */
+    private static boolean usesProxy() {
+        final String proxyHost = System.getProperty("http.proxyHost");
+        return proxyHost != null && proxyHost.length() > 0;
+    }
+
+    /**
+     * Write @a request on @a connection and read the response's
+     * status line and headers.
+     */
+    private Response send(Connection connection,
+                          byte[] request,
+                          int readTimeout) throws IOException {
+        connection.mSocket.setSoTimeout(readTimeout);
+        connection.mOut.write(request);
+        connection.mOut.flush();
+
+        final String statusLine = readLine(connection.mIn);
+        if (statusLine == null)
+            throw new EOFException("Connection closed before the response");
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+            throw new IOException("Malformed status line: " + statusLine);
+        final int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+
+        final Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(connection.mIn)) != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            line.substring(colon + 1).trim());
+        }
+        if (line == null)
+            throw new EOFException("Connection closed in the headers");
+
+        synchronized (this) {
+            mRequestCount++;
+            if (connection.mUsed)
+                mReusedCount++;
+        }
+        connection.mUsed = true;
+
+        return new PooledResponse(connection,
+                                  status,
+                                  headers,
+                                  parts[0].equals("HTTP/1.0"));
+    }
+
+    /**
+     * @return The bytes of a GET request for @a url.
+     */
+    private static byte[] request(URL url,
+                                  Map<String, String> headers) throws IOException {
+        final StringBuilder request = new StringBuilder();
+        request.append("GET ").append(url.getFile().length() > 0 ? url.getFile() : "/")
+            .append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1)
+            request.append(':').append(url.getPort());
+        request.append("\r\n");
+        request.append("Connection: keep-alive\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet())
+            request.append(header.getKey()).append(": ")
+                .append(header.getValue()).append("\r\n");
+        request.append("\r\n");
+        return request.toString().getBytes("ISO-8859-1");
+    }
+
+    /**
+     * @return A line of @a in without its line break, or null if the
+     *         stream ended before any of it.
+     * @throws IOException If the line is longer than MAX_LINE_LENGTH.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = in.read()) != -1 && c != '\n')
+            if (c != '\r') {
+                if (line.size() == MAX_LINE_LENGTH)
+                    throw new IOException("Line longer than "
+                                          + MAX_LINE_LENGTH + " bytes");
+                line.write(c);
+            }
+        if (c == -1 && line.size() == 0)
+            return null;
+        return line.toString("ISO-8859-1");
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getReusedCount() {
+        return mReusedCount;
+    }
+
+    public synchronized long getConnectCount() {
+        return mConnectCount;
+    }
+
+    /**
+     * @return The fraction of requests sent on a reused connection.
+     */
+    public synchronized double getReuseRate() {
+        return mRequestCount == 0
+            ? 0
+            : (double) mReusedCount / mRequestCount;
+    }
+
+    /**
+     * @return The average number of milliseconds a connect took.
+     */
+    public synchronized double getAverageConnectTime() {
+        return mConnectCount == 0
+            ? 0
+            : mConnectNanos / 1e6 / mConnectCount;
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdleCount;
+    }
+
+    /**
+     * Provides a printable summary of the pool's metrics.
+     */
+    @Override
+    public synchronized String toString() {
+        return "PooledHttpTransport [requests=" + mRequestCount
+            + ", reused=" + mReusedCount
+            + ", reuseRate=" + getReuseRate()
+            + ", connects=" + mConnectCount
+            + ", averageConnectMs=" + getAverageConnectTime()
+            + ", staleRetries=" + mRetryCount
+            + ", idle=" + mIdleCount + "]";
+    }
+
+    /**
+     * A connection to a host.
+     */
+    private static class Connection {
+        final String mRoute;
+        final Socket mSocket;
+        final InputStream mIn;
+        final OutputStream mOut;
+
+        /**
+         * True once a response has been read from the connection.
+         */
+        boolean mUsed;
+
+        /**
+         * System.nanoTime() when the connection went idle.
+         */
+        long mIdleSince;
+
+        Connection(String route, Socket socket) throws IOException {
+            mRoute = route;
+            mSocket = socket;
+            mIn = new BufferedInputStream(socket.getInputStream());
+            mOut = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * A response whose body is read from its connection.
+     */
+    private class PooledResponse implements Response {
+        private final Connection mConnection;
+        private final Thread mThread = Thread.currentThread();
+        private final int mStatus;
+        private final Map<String, String> mHeaders;
+        private final BodyInputStream mBody;
+        private boolean mReusable;
+        private boolean mClosed;
+
+        PooledResponse(Connection connection,
+                       int status,
+                       Map<String, String> headers,
+                       boolean http10) {
+            mConnection = connection;
+            mStatus = status;
+            mHeaders = headers;
+
+            final String connectionHeader = headers.get("connection");
+            mReusable = http10
+                ? "keep-alive".equalsIgnoreCase(connectionHeader)
+                : !"close".equalsIgnoreCase(connectionHeader);
+
+            final String transferEncoding = headers.get("transfer-encoding");
+            final String contentLength = headers.get("content-length");
+            if (status / 100 == 1 || status == 204 || status == 304)
+                mBody = new FixedLengthInputStream(connection.mIn, 0);
+            else if (transferEncoding != null
+                     && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked"))
+                mBody = new ChunkedInputStream(connection.mIn);
+            else if (contentLength != null)
+                mBody = new FixedLengthInputStream(connection.mIn,
+                                                   parseLength(contentLength));
+            else {
+                // The body ends when the server closes the connection.
+                mBody = new FixedLengthInputStream(connection.mIn, Long.MAX_VALUE);
+                mReusable = false;
+            }
+        }
+
+        @Override
+        public int getStatus() {
+            return mStatus;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * Drain the rest of the body and put the connection back in
+         * the pool, or close it if it can't be reused.
+         */
+        @Override
+        public void close() {
+            if (mClosed)
+                return;
+            mClosed = true;
+
+            boolean drained = false;
+            if (mReusable)
+                try {
+                    drained = mBody.drain(MAX_DRAIN);
+                } catch (IOException e) {
+                    drained = false;
+                }
+            // An aborted connection is closed already.
+            if (mActive.remove(mThread, mConnection.mSocket) && drained)
+                release(mConnection);
+            else
+                mConnection.close();
+        }
+
+        private long parseLength(String contentLength) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                mReusable = false;
+                return Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * A body read from a connection.  Closing it leaves the
+     * connection open; the Response decides what becomes of it.
+     */
+    private abstract static class BodyInputStream extends InputStream {
+        protected final InputStream mIn;
+
+        BodyInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        /**
+         * Read and discard the rest of the body, but at most @a limit
+         * bytes.
+         *
+         * @return True if the end of the body was reached.
+         */
+        boolean drain(int limit) throws IOException {
+            final byte[] buffer = new byte[Math.min(limit, 4096)];
+            int drained = 0;
+            int n;
+            while ((n = read(buffer, 0, buffer.length)) != -1) {
+                drained += n;
+                if (drained > limit)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A body of a known length.
+     */
+    private static class FixedLengthInputStream extends BodyInputStream {
+        private long mRemaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0)
+                return -1;
+            final int n = mIn.read(b, off, (int) Math.min(len, mRemaining));
+            if (n == -1) {
+                if (mRemaining != Long.MAX_VALUE)
+                    throw new EOFException("Connection closed in the body");
+                mRemaining = 0;
+                return -1;
+            }
+            if (mRemaining != Long.MAX_VALUE)
+                mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mIn.available(), mRemaining);
+        }
+    }
+
+    /**
+     * A body in chunked transfer encoding.
+     */
+    private static class ChunkedInputStream extends BodyInputStream {
+        /**
+         * Bytes left in the current chunk, or -1 before the first
+         * chunk and after each one.
+         */
+        private long mChunkRemaining = -1;
+        private boolean mDone;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mDone)
+                return -1;
+            if (mChunkRemaining <= 0) {
+                nextChunk();
+                if (mDone)
+                    return -1;
+            }
+            final int n = mIn.read(b, off, (int) Math.min(len, mChunkRemaining));
+            if (n == -1)
+                throw new EOFException("Connection closed in a chunk");
+            mChunkRemaining -= n;
+            return n;
+        }
+
+        /**
+         * Read the line ending the previous chunk, if any, and the
+         * size line of the next.  The last chunk is followed by
+         * trailers, which are skipped.
+         */
+        private void nextChunk() throws IOException {
+            if (mChunkRemaining == 0)
+                readLine(mIn);
+            String line = readLine(mIn);
+            if (line == null)
+                throw new EOFException("Connection closed before a chunk");
+            final int extension = line.indexOf(';');
+            if (extension >= 0)
+                line = line.substring(0, extension);
+            try {
+                mChunkRemaining = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + line);
+            }
+            if (mChunkRemaining == 0) {
+                while ((line = readLine(mIn)) != null && line.length() > 0)
+                    continue;
+                mDone = true;
+            }
+        }
+    }
+}
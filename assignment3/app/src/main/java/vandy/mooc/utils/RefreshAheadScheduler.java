@@ -0,0 +1,344 @@
+package vandy.mooc.utils;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class RefreshAheadScheduler
+ *
+ * @brief Keeps the most frequently used keys of a
+ *        WeatherWebService.Cache fresh by refreshing them in the
+ *        background shortly before they expire, so popular
+ *        locations never take a miss.
+ *
+ *        Access counts are halved once per decay period, which is
+ *        about as long as an entry stays fresh, so "hot" means
+ *        frequently used recently even for keys read only a few
+ *        times a minute.  Ticks, which are much more frequent, only
+ *        look for hot keys about to expire.  Refreshes run on a small
+ *        dedicated scheduler and never exceed an upstream
+ *        concurrency budget; a refresh that doesn't fit in the budget
+ *        is simply left for the next tick.
+ */
+public class RefreshAheadScheduler<K> {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG = RefreshAheadScheduler.class.getCanonicalName();
+
+    /**
+     * The cache whose entries are refreshed.
+     */
+    private final WeatherWebService.Cache<K, ?> mCache;
+
+    /**
+     * Fetches a key and puts the result into the cache.
+     */
+    private final WeatherWebService.Cache.Refresher<K> mRefresher;
+
+    /**
+     * Number of hottest keys kept fresh.
+     */
+    private final int mHotKeys;
+
+    /**
+     * Milliseconds before expiry at which a hot key is refreshed.
+     */
+    private final long mRefreshAheadTime;
+
+    /**
+     * Milliseconds between ticks.
+     */
+    private final long mTickPeriod;
+
+    /**
+     * Milliseconds between halvings of the access counts.
+     */
+    private final long mDecayPeriod;
+
+    /**
+     * When the access counts are next halved.  Only used by the
+     * tick.
+     */
+    private long mNextDecay;
+
+    /**
+     * Maximum number of keys whose access counts are tracked.
+     */
+    private final int mMaxTrackedKeys;
+
+    /**
+     * Bounds the number of refreshes running upstream at once.
+     */
+    private final Semaphore mBudget;
+
+    /**
+     * Runs the ticks and the refreshes.
+     */
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    /**
+     * Set once the periodic tick has been scheduled.
+     */
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+
+    /**
+     * Recent access counts, halved once per decay period.
+     */
+    private final ConcurrentHashMap<K, AtomicInteger> mCounts =
+        new ConcurrentHashMap<K, AtomicInteger>();
+
+    /**
+     * Keys with a refresh queued or running.
+     */
+    private final ConcurrentHashMap<K, Boolean> mRefreshing =
+        new ConcurrentHashMap<K, Boolean>();
+
+    /**
+     * Keys refreshed ahead that haven't been read since the entry
+     * the refresh replaced would have expired, mapped to that
+     * expiration time.
+     */
+    private final ConcurrentHashMap<K, Long> mUnread =
+        new ConcurrentHashMap<K, Long>();
+
+    /**
+     * Refreshes issued, refreshes whose result was never read, and
+     * reads that would have found an expired entry without a
+     * refresh.
+     */
+    private final AtomicLong mIssuedCount = new AtomicLong();
+    private final AtomicLong mWastedCount = new AtomicLong();
+    private final AtomicLong mMissesAvoidedCount = new AtomicLong();
+
+    /**
+     * Constructor initializes the fields.  The scheduler starts
+     * ticking on the first recorded access.
+     *
+     * @param cache The cache whose entries are refreshed.
+     * @param refresher Fetches a key and puts it into @a cache.
+     * @param hotKeys Number of hottest keys kept fresh.
+     * @param refreshAheadTime Milliseconds before expiry at which a
+     *        hot key is refreshed.
+     * @param tickPeriod Milliseconds between ticks; should be well
+     *        below @a refreshAheadTime.
+     * @param decayPeriod Milliseconds between halvings of the access
+     *        counts; should be about as long as an entry stays fresh.
+     * @param maxConcurrentRefreshes Upstream concurrency budget.
+     */
+    public RefreshAheadScheduler(WeatherWebService.Cache<K, ?> cache,
+                                 WeatherWebService.Cache.Refresher<K> refresher,
+                                 int hotKeys,
+                                 long refreshAheadTime,
+                                 long tickPeriod,
+                                 long decayPeriod,
+                                 int maxConcurrentRefreshes) {
+        mCache = cache;
+        mRefresher = refresher;
+        mHotKeys = hotKeys;
+        mRefreshAheadTime = refreshAheadTime;
+        mTickPeriod = tickPeriod;
+        mDecayPeriod = decayPeriod;
+        mNextDecay = System.currentTimeMillis() + decayPeriod;
+        mMaxTrackedKeys = 16 * hotKeys;
+        mBudget = new Semaphore(maxConcurrentRefreshes);
+        mExecutor =
+            new ScheduledThreadPoolExecutor(maxConcurrentRefreshes + 1,
+                                            new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                                   "RefreshAhead");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Record an access to @a key.  Called on every lookup, hit or
+     * miss.
+     */
+    public void recordAccess(K key) {
+        if (mStarted.compareAndSet(false, true))
+            mExecutor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        tick();
+                    }
+                },
+                mTickPeriod,
+                mTickPeriod,
+                TimeUnit.MILLISECONDS);
+
+        // A read before the replaced entry would have expired gains
+        // nothing from the refresh, so only a later one counts.
+        final Long replacedExpiresAt = mUnread.get(key);
+        if (replacedExpiresAt != null
+            && System.currentTimeMillis() >= replacedExpiresAt
+            && mUnread.remove(key, replacedExpiresAt))
+            mMissesAvoidedCount.incrementAndGet();
+
+        AtomicInteger count = mCounts.get(key);
+        if (count == null) {
+            // Stop tracking new keys when a scan of one-off keys
+            // floods the table; the next tick ages the counts to
+            // make room again.
+            if (mCounts.size() >= mMaxTrackedKeys)
+                return;
+            final AtomicInteger newCount = new AtomicInteger();
+            count = mCounts.putIfAbsent(key, newCount);
+            if (count == null)
+                count = newCount;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Refresh the hot keys that are about to expire, and age the
+     * access counts once the decay period has passed or the table
+     * of counts is full.
+     */
+    private void tick() {
+        try {
+            final long now = System.currentTimeMillis();
+
+            for (final K key : hottest()) {
+                final long expiresAt = mCache.getExpiresAt(key);
+                // Keys that aren't cached, or have already expired,
+                // are left to the next lookup, which fetches or
+                // revalidates them anyway.
+                if (expiresAt <= now
+                    || expiresAt - now > mRefreshAheadTime)
+                    continue;
+                if (!mBudget.tryAcquire())
+                    break;
+                if (mRefreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+                    mBudget.release();
+                    continue;
+                }
+                issue(key, expiresAt);
+            }
+
+            // A refreshed entry that expired without being read when
+            // it mattered was fetched for nothing.
+            for (Map.Entry<K, Long> unread : mUnread.entrySet()) {
+                final long expiresAt = mCache.getExpiresAt(unread.getKey());
+                if (expiresAt == 0 || expiresAt <= now)
+                    if (mUnread.remove(unread.getKey(), unread.getValue()))
+                        mWastedCount.incrementAndGet();
+            }
+
+            if (now >= mNextDecay
+                || mCounts.size() >= mMaxTrackedKeys) {
+                mNextDecay = now + mDecayPeriod;
+                for (Map.Entry<K, AtomicInteger> entry : mCounts.entrySet())
+                    if (entry.getValue().get() <= 1)
+                        mCounts.remove(entry.getKey(), entry.getValue());
+                    else
+                        entry.getValue().set(entry.getValue().get() / 2);
+            }
+        } catch (RuntimeException e) {
+            // Keep the periodic tick alive.
+            Log.e(TAG, "Refresh-ahead tick failed", e);
+        }
+    }
+
+    /**
+     * Refresh @a key in the background.  The caller holds a budget
+     * permit and has marked @a key as refreshing.
+     */
+    private void issue(final K key,
+                       final long replacedExpiresAt) {
+        mIssuedCount.incrementAndGet();
+
+        // Refreshing again before the originally replaced entry would
+        // have expired keeps that earlier expiration time; otherwise
+        // the previous refresh was never read when it mattered.
+        final Long previous = mUnread.get(key);
+        if (previous == null
+            || System.currentTimeMillis() >= previous) {
+            if (previous != null)
+                mWastedCount.incrementAndGet();
+            mUnread.put(key, replacedExpiresAt);
+        }
+
+        mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mRefresher.refresh(key);
+                    } finally {
+                        mRefreshing.remove(key);
+                        mBudget.release();
+                    }
+                }
+            });
+        Log.d(TAG, "Refreshing ahead " + key + " " + this);
+    }
+
+    /**
+     * @return The keys with the highest access counts, at most
+     *         mHotKeys of them.
+     */
+    private Iterable<K> hottest() {
+        final PriorityQueue<Map.Entry<K, AtomicInteger>> top =
+            new PriorityQueue<Map.Entry<K, AtomicInteger>>(mHotKeys + 1,
+                                                            new Comparator<Map.Entry<K, AtomicInteger>>() {
+                    @Override
+                    public int compare(Map.Entry<K, AtomicInteger> a,
+                                       Map.Entry<K, AtomicInteger> b) {
+                        final int countA = a.getValue().get();
+                        final int countB = b.getValue().get();
+                        return countA < countB ? -1 : (countA == countB ? 0 : 1);
+                    }
+                });
+        for (Map.Entry<K, AtomicInteger> entry : mCounts.entrySet()) {
+            top.add(entry);
+            if (top.size() > mHotKeys)
+                top.poll();
+        }
+
+        final List<K> keys = new ArrayList<K>(top.size());
+        for (Map.Entry<K, AtomicInteger> entry : top)
+            keys.add(entry.getKey());
+        return keys;
+    }
+
+    public long getIssuedCount() {
+        return mIssuedCount.get();
+    }
+
+    public long getWastedCount() {
+        return mWastedCount.get();
+    }
+
+    public long getMissesAvoidedCount() {
+        return mMissesAvoidedCount.get();
+    }
+
+    /**
+     * Provides a printable summary of the refresh counters.
+     */
+    @Override
+    public String toString() {
+        return "RefreshAhead [tracked=" + mCounts.size()
+            + ", issued=" + mIssuedCount.get()
+            + ", wasted=" + mWastedCount.get()
+            + ", missesAvoided=" + mMissesAvoidedCount.get() + "]";
+    }
+}
@@ -0,0 +1,348 @@
+package vandy.mooc.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * @class RequestPipeline
+ *
+ * @brief Runs blocking requests, such as two-way binder calls, on a
+ *        fixed number of worker threads and delivers their outcomes
+ *        on a Handler's thread in the order the requests were
+ *        submitted.
+ *
+ *        Unlike AsyncTask.execute(), whose serial executor runs one
+ *        task at a time for the whole app, up to parallelism requests
+ *        run at once.  A request equal to one already in flight
+ *        shares its call instead of starting another.  Each request
+ *        is given a deadline, and one that isn't done by then is
+ *        delivered as failed with a TimeoutException, so a stuck
+ *        call never holds back the outcomes of later requests.
+ */
+public class RequestPipeline<Q, R> {
+    /**
+     * Number of seconds an idle worker lingers before it exits.
+     */
+    private final static long KEEP_ALIVE_TIME = 30;
+
+    /**
+     * Makes the blocking call for a request.
+     */
+    public interface Call<Q, R> {
+        /**
+         * Called on a worker thread.
+         *
+         * @param deadline The SystemClock.elapsedRealtime() time by
+         *        which the result is needed.
+         */
+        R call(Q request, long deadline) throws Exception;
+    }
+
+    /**
+     * Receives the outcome of a request on the Handler's thread.
+     */
+    public interface Callback<Q, R> {
+        void onResult(Q request, R result);
+
+        /**
+         * @param error The exception thrown by the call, or a
+         *        TimeoutException if it wasn't done in time.
+         */
+        void onFailure(Q request, Exception error);
+    }
+
+    private final Call<Q, R> mCall;
+    private final Handler mHandler;
+    private final long mTimeout;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Requests not delivered yet, in the order they were submitted.
+     * Guarded by "this", as is everything below.
+     */
+    private final ArrayDeque<Ticket> mTickets = new ArrayDeque<Ticket>();
+
+    /**
+     * Calls in flight, keyed by request.
+     */
+    private final Map<Q, InFlight> mInFlight = new HashMap<Q, InFlight>();
+
+    /**
+     * Metrics.
+     */
+    private long mSubmittedCount;
+    private long mDeduplicatedCount;
+    private long mTimedOutCount;
+    private long mCancelledCount;
+
+    /**
+     * Constructor creates the pipeline.  Workers are started on
+     * demand and exit when idle.
+     *
+     * @param name Name given to the worker threads.
+     * @param parallelism Maximum number of calls running at once.
+     * @param timeout Number of milliseconds a request may take.
+     * @param call Makes the call for a request.
+     * @param handler Outcomes are delivered on its thread.
+     */
+    public RequestPipeline(final String name,
+                           int parallelism,
+                           long timeout,
+                           Call<Q, R> call,
+                           Handler handler) {
+        mCall = call;
+        mHandler = handler;
+        mTimeout = timeout;
+        mExecutor =
+            new ThreadPoolExecutor(parallelism,
+                                   parallelism,
+                                   KEEP_ALIVE_TIME,
+                                   TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   new ThreadFactory() {
+                                       private final AtomicInteger mCount =
+                                           new AtomicInteger();
+
+                                       @Override
+                                       public Thread newThread(Runnable runnable) {
+                                           return new Thread(runnable,
+                                                             name + "-" + mCount.incrementAndGet());
+                                       }
+                                   });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run @a request and deliver its outcome to @a callback after
+     * those of every request submitted before it.  May be called on
+     * any thread.
+     *
+     * @return The request's Ticket, which can be passed to cancel().
+     */
+    public Ticket submit(Q request,
+                         Callback<Q, R> callback) {
+        final long deadline = SystemClock.elapsedRealtime() + mTimeout;
+        final Ticket ticket = new Ticket(request, callback);
+        InFlight started = null;
+
+        synchronized (this) {
+            mSubmittedCount++;
+            mTickets.add(ticket);
+            InFlight inFlight = mInFlight.get(request);
+            // A call past its deadline may be stuck, so don't join
+            // it.
+            if (inFlight == null
+                || inFlight.mDeadline <= deadline - mTimeout) {
+                inFlight = new InFlight(request, deadline);
+                mInFlight.put(request, inFlight);
+                started = inFlight;
+            } else
+                mDeduplicatedCount++;
+            inFlight.mTickets.add(ticket);
+        }
+
+        mHandler.postDelayed(ticket.mTimeoutTask, mTimeout);
+
+        if (started != null) {
+            try {
+                mExecutor.execute(started);
+            } catch (RejectedExecutionException e) {
+                started.complete(null, e);
+            }
+        }
+        return ticket;
+    }
+
+    /**
+     * Drop the outcome of the request @a ticket stands for, unless it
+     * has already been delivered, so the outcomes of later requests
+     * no longer wait for it.  Its call still runs, since other
+     * requests may share it.  May be called on any thread.
+     */
+    public void cancel(Ticket ticket) {
+        synchronized (this) {
+            if (ticket.mCancelled)
+                return;
+            ticket.mCancelled = true;
+            mCancelledCount++;
+            if (ticket.mDone)
+                // Already posted, or about to be; run() drops it.
+                return;
+            ticket.finish(null, null);
+            mHandler.removeCallbacks(ticket.mTimeoutTask);
+            mTickets.remove(ticket);
+            deliverReady();
+        }
+    }
+
+    /**
+     * Stop running requests.  Outcomes not delivered yet are
+     * dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        synchronized (this) {
+            for (Ticket ticket : mTickets)
+                mHandler.removeCallbacks(ticket.mTimeoutTask);
+            mTickets.clear();
+            mInFlight.clear();
+        }
+    }
+
+    /**
+     * Post the outcomes of the requests at the head of mTickets that
+     * are done.  Posting them in order under the lock keeps them in
+     * order on the Handler's thread.  Must be called with "this"
+     * locked.
+     */
+    private void deliverReady() {
+        while (!mTickets.isEmpty() && mTickets.peek().mDone) {
+            final Ticket ticket = mTickets.poll();
+            mHandler.removeCallbacks(ticket.mTimeoutTask);
+            mHandler.post(ticket);
+        }
+    }
+
+    public synchronized long getSubmittedCount() {
+        return mSubmittedCount;
+    }
+
+    /**
+     * @return The number of requests that shared a call already in
+     *         flight.
+     */
+    public synchronized long getDeduplicatedCount() {
+        return mDeduplicatedCount;
+    }
+
+    public synchronized long getTimedOutCount() {
+        return mTimedOutCount;
+    }
+
+    public synchronized long getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    /**
+     * Provides a printable summary of the metrics.
+     */
+    @Override
+    public synchronized String toString() {
+        return "RequestPipeline [active=" + mExecutor.getActiveCount()
+            + ", queued=" + mExecutor.getQueue().size()
+            + ", undelivered=" + mTickets.size()
+            + ", submitted=" + mSubmittedCount
+            + ", deduplicated=" + mDeduplicatedCount
+            + ", timedOut=" + mTimedOutCount
+            + ", cancelled=" + mCancelledCount + "]";
+    }
+
+    /**
+     * A call in flight and the requests waiting for it.
+     */
+    private class InFlight implements Runnable {
+        final Q mRequest;
+        final long mDeadline;
+        final List<Ticket> mTickets = new ArrayList<Ticket>(1);
+
+        InFlight(Q request, long deadline) {
+            mRequest = request;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            R result = null;
+            Exception error = null;
+            try {
+                result = mCall.call(mRequest, mDeadline);
+            } catch (Exception e) {
+                error = e;
+            }
+            complete(result, error);
+        }
+
+        void complete(R result, Exception error) {
+            synchronized (RequestPipeline.this) {
+                if (mInFlight.get(mRequest) == this)
+                    mInFlight.remove(mRequest);
+                for (Ticket ticket : mTickets)
+                    ticket.finish(result, error);
+                deliverReady();
+            }
+        }
+    }
+
+    /**
+     * A submitted request.  Runs on the Handler's thread to deliver
+     * its outcome.
+     */
+    public class Ticket implements Runnable {
+        final Q mRequest;
+        final Callback<Q, R> mCallback;
+        boolean mDone;
+        boolean mCancelled;
+        R mResult;
+        Exception mError;
+
+        /**
+         * Fails the request if it isn't done in time.
+         */
+        final Runnable mTimeoutTask = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (RequestPipeline.this) {
+                        if (mDone)
+                            return;
+                        mTimedOutCount++;
+                        finish(null,
+                               new TimeoutException("Request for " + mRequest
+                                                    + " timed out"));
+                        deliverReady();
+                    }
+                }
+            };
+
+        Ticket(Q request, Callback<Q, R> callback) {
+            mRequest = request;
+            mCallback = callback;
+        }
+
+        /**
+         * Record the outcome, unless the request already timed out.
+         * Must be called with the pipeline locked.
+         */
+        void finish(R result, Exception error) {
+            if (mDone)
+                return;
+            mDone = true;
+            mResult = result;
+            mError = error;
+        }
+
+        @Override
+        public void run() {
+            synchronized (RequestPipeline.this) {
+                if (mCancelled)
+                    return;
+            }
+            if (mError != null)
+                mCallback.onFailure(mRequest, mError);
+            else
+                mCallback.onResult(mRequest, mResult);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package vandy.mooc.utils;
+
+/**
+ * @class TimerWheel
+ *
+ * @brief A hierarchical timer wheel that finds expired nodes in O(1)
+ *        per tick, no matter how many nodes are scheduled.
+ *
+ *        Each of the LEVELS wheels has BUCKETS buckets; a bucket of
+ *        level n covers BUCKETS^n ticks.  A node is filed in the
+ *        lowest level whose span covers its deadline.  Every tick
+ *        expires one bucket of level 0, and whenever level n wraps
+ *        around the next bucket of level n+1 is cascaded down into
+ *        the finer levels.  Each node is cascaded at most LEVELS - 1
+ *        times, so the amortized cost of a tick is constant.  Nodes
+ *        are kept in doubly-linked lists, so cancelling one is O(1)
+ *        as well.
+ *
+ *        Not thread-safe; callers synchronize.
+ */
+public class TimerWheel {
+    /**
+     * Geometry of the wheels: LEVELS wheels of 2^SHIFT buckets.
+     * With one-second ticks they span about 194 days; later
+     * deadlines are parked in the last level and rescheduled as it
+     * turns.
+     */
+    private static final int LEVELS = 4;
+    private static final int SHIFT = 6;
+    private static final int BUCKETS = 1 << SHIFT;
+    private static final int MASK = BUCKETS - 1;
+    private static final long MAX_DELTA = (1L << (SHIFT * LEVELS)) - 1;
+
+    /**
+     * A scheduled node.  Subclass it to attach the payload.
+     */
+    public static class Node {
+        private Node mPrev;
+        private Node mNext;
+        private long mDeadlineTick;
+
+        /**
+         * @return True if the node is scheduled in a wheel.
+         */
+        public boolean isScheduled() {
+            return mPrev != null;
+        }
+    }
+
+    /**
+     * Called for each node whose deadline has passed.
+     */
+    public interface Listener {
+        void onExpired(Node node);
+    }
+
+    /**
+     * Milliseconds per tick.
+     */
+    private final long mResolution;
+
+    /**
+     * Bucket sentinels, indexed by level and bucket.
+     */
+    private final Node[][] mBuckets;
+
+    /**
+     * The last tick processed.
+     */
+    private long mCurrentTick;
+
+    /**
+     * Number of nodes scheduled.
+     */
+    private int mSize;
+
+    /**
+     * Constructor creates empty wheels starting at @a now.
+     *
+     * @param resolution Milliseconds per tick.
+     * @param now The current time in milliseconds.
+     */
+    public TimerWheel(long resolution, long now) {
+        mResolution = resolution;
+        mCurrentTick = now / resolution;
+        mBuckets = new Node[LEVELS][BUCKETS];
+        for (Node[] level : mBuckets)
+            for (int i = 0; i < BUCKETS; i++) {
+                final Node sentinel = new Node();
+                sentinel.mPrev = sentinel;
+                sentinel.mNext = sentinel;
+                level[i] = sentinel;
+            }
+    }
+
+    /**
+     * Schedule @a node to expire at @a deadline milliseconds,
+     * cancelling any earlier schedule.
+     */
+    public void schedule(Node node, long deadline) {
+        if (node.isScheduled())
+            cancel(node);
+        // Round up, so a node never expires before its deadline.
+        node.mDeadlineTick = (deadline + mResolution - 1) / mResolution;
+        // The current tick's bucket has already been processed.
+        file(node, 1);
+        mSize++;
+    }
+
+    /**
+     * Remove @a node from the wheel, if it's scheduled.
+     */
+    public void cancel(Node node) {
+        if (!node.isScheduled())
+            return;
+        unlink(node);
+        mSize--;
+    }
+
+    /**
+     * @return The number of nodes scheduled.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Process every tick up to @a now, passing each node whose
+     * deadline has passed to @a listener after removing it.
+     */
+    public void advance(long now, Listener listener) {
+        final long targetTick = now / mResolution;
+        while (mCurrentTick < targetTick) {
+            mCurrentTick++;
+
+            // When level 0 wraps, cascade the next bucket of every
+            // level that wraps with it, coarsest first.
+            if ((mCurrentTick & MASK) == 0) {
+                int level = 1;
+                while (level < LEVELS - 1
+                       && index(mCurrentTick, level) == 0)
+                    level++;
+                for (; level >= 1; level--)
+                    cascade(level, index(mCurrentTick, level));
+            }
+
+            final Node sentinel = mBuckets[0][index(mCurrentTick, 0)];
+            while (sentinel.mNext != sentinel) {
+                final Node node = sentinel.mNext;
+                unlink(node);
+                if (node.mDeadlineTick <= mCurrentTick) {
+                    mSize--;
+                    listener.onExpired(node);
+                } else
+                    // Parked beyond the span of the wheels.
+                    file(node, 1);
+            }
+        }
+    }
+
+    /**
+     * Move every node of bucket @a bucket at @a level down to the
+     * level its deadline now belongs in.
+     */
+    private void cascade(int level, int bucket) {
+        final Node sentinel = mBuckets[level][bucket];
+        Node node = sentinel.mNext;
+        // Detach the whole list first, since refiling may put nodes
+        // back into this very bucket.
+        sentinel.mPrev.mNext = null;
+        sentinel.mNext = sentinel;
+        sentinel.mPrev = sentinel;
+        while (node != null && node != sentinel) {
+            final Node next = node.mNext;
+            node.mPrev = null;
+            node.mNext = null;
+            // Cascading runs before the current tick's bucket is
+            // processed, so a node due now can still go there.
+            file(node, 0);
+            node = next;
+        }
+    }
+
+    /**
+     * Link @a node into the bucket for its deadline, but at least @a
+     * minDelta ticks from now.
+     */
+    private void file(Node node, long minDelta) {
+        final long delta = Math.min(Math.max(node.mDeadlineTick - mCurrentTick,
+                                             minDelta),
+                                    MAX_DELTA);
+        final long tick = mCurrentTick + delta;
+
+        int level = 0;
+        while (level < LEVELS - 1
+               && delta >= 1L << (SHIFT * (level + 1)))
+            level++;
+
+        final Node sentinel = mBuckets[level][index(tick, level)];
+        node.mPrev = sentinel.mPrev;
+        node.mNext = sentinel;
+        sentinel.mPrev.mNext = node;
+        sentinel.mPrev = node;
+    }
+
+    private static void unlink(Node node) {
+        node.mPrev.mNext = node.mNext;
+        node.mNext.mPrev = node.mPrev;
+        node.mPrev = null;
+        node.mNext = null;
+    }
+
+    private static int index(long tick, int level) {
+        return (int) ((tick >>> (SHIFT * level)) & MASK);
+    }
+}
@@ -0,0 +1,36 @@
+package vandy.mooc.utils;
+
+/**
+ * @class TinyLfuAdmissionPolicy
+ *
+ * @brief Admits a new key into a full WeatherWebService.Cache only if
+ *        it has been used more often recently than the entry it would
+ *        evict.  A scan of one-off locations then can't flush the
+ *        popular ones out of the cache.  Frequencies are estimated
+ *        with a FrequencySketch, so keys that aren't cached are
+ *        remembered too, at a few bytes per cache entry.
+ */
+public class TinyLfuAdmissionPolicy<K>
+       implements WeatherWebService.Cache.AdmissionPolicy<K> {
+    /**
+     * Estimates recent access frequencies.
+     */
+    private final FrequencySketch mSketch;
+
+    /**
+     * Constructor sizes the sketch for a cache of @a maxEntries.
+     */
+    public TinyLfuAdmissionPolicy(int maxEntries) {
+        mSketch = new FrequencySketch(maxEntries);
+    }
+
+    @Override
+    public void record(K key) {
+        mSketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(K candidate, K victim) {
+        return mSketch.frequency(candidate) > mSketch.frequency(victim);
+    }
+}
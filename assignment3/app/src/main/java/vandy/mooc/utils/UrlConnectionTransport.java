@@ -0,0 +1,80 @@
+package vandy.mooc.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @class UrlConnectionTransport
+ *
+ * @brief An HttpTransport that sends each request over an
+ *        HttpURLConnection of its own and disconnects it afterwards,
+ *        so every request pays to connect.  Handles any URL the
+ *        platform does, including https.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+    /**
+     * The connection each thread is using, so it can be aborted.
+     */
+    private final ConcurrentHashMap<Thread, HttpURLConnection> mActive =
+        new ConcurrentHashMap<Thread, HttpURLConnection>();
+
+    @Override
+    public Response get(URL url,
+                        Map<String, String> headers,
+                        int connectTimeout,
+                        int readTimeout) throws IOException {
+        final HttpURLConnection urlConnection =
+            (HttpURLConnection) url.openConnection();
+        final Thread thread = Thread.currentThread();
+        mActive.put(thread, urlConnection);
+        try {
+            urlConnection.setConnectTimeout(connectTimeout);
+            urlConnection.setReadTimeout(readTimeout);
+            for (Map.Entry<String, String> header : headers.entrySet())
+                urlConnection.setRequestProperty(header.getKey(),
+                                                 header.getValue());
+            urlConnection.connect();
+
+            final int status = urlConnection.getResponseCode();
+            return new Response() {
+                @Override
+                public int getStatus() {
+                    return status;
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return urlConnection.getHeaderField(name);
+                }
+
+                @Override
+                public InputStream getBody() throws IOException {
+                    return status < HttpURLConnection.HTTP_BAD_REQUEST
+                        ? urlConnection.getInputStream()
+                        : urlConnection.getErrorStream();
+                }
+
+                @Override
+                public void close() {
+                    mActive.remove(thread, urlConnection);
+                    urlConnection.disconnect();
+                }
+            };
+        } catch (IOException e) {
+            mActive.remove(thread, urlConnection);
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public void abort(Thread thread) {
+        final HttpURLConnection urlConnection = mActive.remove(thread);
+        if (urlConnection != null)
+            urlConnection.disconnect();
+    }
+}
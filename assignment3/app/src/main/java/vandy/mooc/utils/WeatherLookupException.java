@@ -0,0 +1,94 @@
+package vandy.mooc.utils;
+
+/**
+ * @class WeatherLookupException
+ *
+ * @brief Thrown when the weather for a location can't be obtained.
+ *        The Reason tells callers (and the negative cache) whether
+ *        the location is definitively unknown or the lookup merely
+ *        failed this time.
+ */
+public class WeatherLookupException extends Exception {
+    /**
+     * Why a lookup failed.
+     */
+    public enum Reason {
+        /**
+         * The Weather web service doesn't know the location.
+         */
+        NOT_FOUND,
+
+        /**
+         * The Weather web service couldn't be reached or returned
+         * something unusable.
+         */
+        UPSTREAM_ERROR,
+
+        /**
+         * The lookup couldn't be done by the caller's deadline.
+         */
+        DEADLINE_EXCEEDED,
+
+        /**
+         * The service has too much work queued to take the lookup.
+         */
+        BUSY,
+
+        /**
+         * The lookup was cancelled because its result is no longer
+         * needed.
+         */
+        CANCELLED
+    }
+
+    /**
+     * Why the lookup failed.
+     */
+    private final Reason mReason;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public WeatherLookupException(Reason reason,
+                                  String message) {
+        super(message);
+        mReason = reason;
+    }
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public WeatherLookupException(Reason reason,
+                                  String message,
+                                  Throwable cause) {
+        super(message, cause);
+        mReason = reason;
+    }
+
+    /**
+     * @return Why the lookup failed.
+     */
+    public Reason getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return The message shown to the user when the lookup of @a
+     *         location failed for @a reason.
+     */
+    public static String describe(Reason reason,
+                                  String location) {
+        switch (reason) {
+        case NOT_FOUND:
+            return "No weather for " + location + " found";
+        case BUSY:
+            return "Weather service busy, try " + location + " again later";
+        case DEADLINE_EXCEEDED:
+            return "Weather lookup of " + location + " took too long";
+        case CANCELLED:
+            return "Lookup of " + location + " cancelled";
+        default:
+            return "Weather service unavailable for " + location;
+        }
+    }
+}
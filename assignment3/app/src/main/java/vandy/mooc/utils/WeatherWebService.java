@@ -1,17 +1,49 @@
 package vandy.mooc.utils;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import vandy.mooc.aidl.WeatherData;
-import vandy.mooc.jsonweather.JsonWeather;
 import vandy.mooc.jsonweather.WeatherJSONParser;
 
 /**
@@ -27,128 +59,1890 @@ public class WeatherWebService {
     private final static String TAG = WeatherWebService.class.getCanonicalName();
 
     /**
-     * URL to the Weather web service.
+     * URL to the Weather web service.  A query ("q=" followed by a
+     * location, or "id=" followed by a city id) is appended to it.
      */
     private final static String sWeather_Web_Service_URL =
-        "http://api.openweathermap.org/data/2.5/weather?units=imperial&q=";
+        "http://api.openweathermap.org/data/2.5/weather?units=imperial&";
 
-    private static Cache<String, WeatherData> cache = new Cache<String, WeatherData>();
+    /**
+     * URL requests are actually sent to, which is
+     * sWeather_Web_Service_URL unless setWebServiceUrl() changed it.
+     */
+    private static volatile String sWebServiceUrl = sWeather_Web_Service_URL;
+
+    /**
+     * Maximum number of idle connections kept to the web service,
+     * and the number of milliseconds one is kept.  The pool needn't
+     * be bigger than the number of fetches that run at once.
+     */
+    private final static int sMax_Idle_Connections = 8;
+    private final static long sKeep_Alive_Time = 30 * 1000;
+
+    /**
+     * Sends the requests to the web service unless setTransport()
+     * changed it, over a pool of persistent connections.
+     */
+    private final static HttpTransport sDefault_Transport =
+        new PooledHttpTransport(sMax_Idle_Connections,
+                                sKeep_Alive_Time);
+
+    /**
+     * Sends the requests to the web service.
+     */
+    private static volatile HttpTransport sTransport =
+        sDefault_Transport;
+
+    /**
+     * Headers sent with every request.  Bodies are asked for gzipped,
+     * which shrinks the Json several times over, and are decompressed
+     * as they're parsed.
+     */
+    private final static Map<String, String> sRequest_Headers =
+        Collections.singletonMap("Accept-Encoding", "gzip");
+
+    /**
+     * Number of body bytes received from the web service, and the
+     * number they decompressed to and were parsed.
+     */
+    private final static AtomicLong sBytesOnWire = new AtomicLong();
+    private final static AtomicLong sBytesParsed = new AtomicLong();
+
+    /**
+     * Maximum number of cities kept in the cache.
+     */
+    private final static int sCache_Max_Entries = 256;
+
+    /**
+     * Number of milliseconds a stale entry is still served while it is
+     * refreshed in the background.  Weather that is a few minutes old
+     * is good enough to show right away.
+     */
+    private final static int sCache_Hard_Expiration_Time = 5 * 60 * 1000;
+
+    /**
+     * Number of threads used to refresh stale cache entries.
+     */
+    private final static int sRefresh_Threads = 2;
+
+    /**
+     * Runs background refreshes of stale cache entries.  Idle threads
+     * time out so the pool costs nothing when there's no traffic.
+     */
+    private final static ThreadPoolExecutor sRefreshExecutor =
+        new ThreadPoolExecutor(sRefresh_Threads,
+                               sRefresh_Threads,
+                               30,
+                               TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sRefreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Refetches a city by its id, for background refreshes.
+     */
+    private final static Cache.Refresher<Long> sCityRefresher =
+        new Cache.Refresher<Long>() {
+            @Override
+            public void refresh(Long cityId) {
+                Log.d(TAG, "Refresh weather for city " + cityId);
+                try {
+                    // A city that just failed isn't refetched until
+                    // its failure is forgotten.
+                    final String query = cityQuery(cityId);
+                    checkNegativeCache(query, query);
+                    fetchCoalesced(null, cityId, query, NO_DEADLINE);
+                } catch (WeatherLookupException e) {
+                    Log.d(TAG, e.getMessage());
+                }
+            }
+        };
+
+    /**
+     * Bounded cache of the most recently used cities, keyed by the
+     * web service's city id, so every spelling of a location shares
+     * one entry.  Stale entries are served while a single background
+     * fetch refreshes them, and a new city only displaces a more
+     * popular one if it is used more often.
+     */
+    private static Cache<Long, WeatherData> cache =
+        new Cache<Long, WeatherData>(Cache.DEFAULT_EXPIRATION_TIME,
+                                     sCache_Hard_Expiration_Time,
+                                     sCache_Max_Entries,
+                                     sCityRefresher,
+                                     sRefreshExecutor,
+                                     new TinyLfuAdmissionPolicy<Long>(sCache_Max_Entries));
+
+    /**
+     * Number of milliseconds an alias is remembered to name a city.
+     * City ids are stable, but what a free-text query resolves to
+     * may change now and then.
+     */
+    private final static int sAlias_Expiration_Time = 24 * 60 * 60 * 1000;
+
+    /**
+     * Maximum number of aliases remembered.  Several aliases usually
+     * name each cached city.
+     */
+    private final static int sAlias_Max_Entries = 4 * sCache_Max_Entries;
+
+    /**
+     * Alias index mapping canonical locations, as typed by users, to
+     * the id of the city the web service resolved them to.
+     */
+    private static Cache<String, Long> sAliases =
+        new Cache<String, Long>(sAlias_Expiration_Time,
+                                sAlias_Max_Entries);
+
+    /**
+     * Validators of the responses cached cities came from, so their
+     * refreshes can be conditional requests.
+     */
+    private static Cache<Long, Validators> sValidators =
+        new Cache<Long, Validators>(sCache_Hard_Expiration_Time,
+                                    sCache_Max_Entries);
+
+    /**
+     * Number of conditional requests sent, and the number answered
+     * with 304, whose cached weather was kept without a body being
+     * read or parsed.
+     */
+    private final static AtomicLong sConditionalRequestCount = new AtomicLong();
+    private final static AtomicLong sNotModifiedCount = new AtomicLong();
+
+    /**
+     * Number of hottest cities kept fresh ahead of expiry.
+     */
+    private final static int sRefresh_Ahead_Hot_Keys = 16;
+
+    /**
+     * Number of milliseconds before expiry at which a hot city is
+     * refreshed, and the period at which that's checked.
+     */
+    private final static long sRefresh_Ahead_Time = 5000;
+    private final static long sRefresh_Ahead_Tick = 1000;
+
+    /**
+     * Number of milliseconds between halvings of the cities' access
+     * counts: the longest fetched weather is kept fresh, so a city
+     * read a few times per expiry stays hot.
+     */
+    private final static long sRefresh_Ahead_Decay = 10 * 60 * 1000;
+
+    /**
+     * Maximum number of refresh-ahead fetches running upstream at
+     * once.
+     */
+    private final static int sRefresh_Ahead_Budget = 2;
+
+    /**
+     * Refreshes the hottest cities shortly before they expire.
+     */
+    private final static RefreshAheadScheduler<Long> sRefreshAhead =
+        new RefreshAheadScheduler<Long>(cache,
+                                        sCityRefresher,
+                                        sRefresh_Ahead_Hot_Keys,
+                                        sRefresh_Ahead_Time,
+                                        sRefresh_Ahead_Tick,
+                                        sRefresh_Ahead_Decay,
+                                        sRefresh_Ahead_Budget);
+
+    /**
+     * Number of milliseconds between the web service's updates of a
+     * location's observation.
+     */
+    private final static long sProvider_Update_Interval = 10 * 60 * 1000;
+
+    /**
+     * Bounds on how long fetched weather is kept fresh.  The lower
+     * bound keeps polling a late observation; the upper bound guards
+     * against a skewed clock.
+     */
+    private final static long sMin_Expiration_Time = Cache.DEFAULT_EXPIRATION_TIME;
+    private final static long sMax_Expiration_Time = sProvider_Update_Interval;
+
+    /**
+     * Number of milliseconds a location the web service doesn't know
+     * is remembered as not found.
+     */
+    private final static int sNot_Found_Expiration_Time = 60 * 1000;
+
+    /**
+     * Number of milliseconds a failed fetch is remembered, so a flaky
+     * upstream isn't hammered but recovers quickly.
+     */
+    private final static int sUpstream_Error_Expiration_Time = 5 * 1000;
+
+    /**
+     * Maximum number of queries kept in each negative cache.
+     */
+    private final static int sNegative_Cache_Max_Entries = 64;
+
+    /**
+     * Negative caches of queries the web service doesn't know and of
+     * queries whose last fetch failed.  They are kept apart so a
+     * transient error is forgotten sooner than a definitive 404.
+     */
+    private static Cache<String, Boolean> sNotFoundCache =
+        new Cache<String, Boolean>(sNot_Found_Expiration_Time,
+                                   sNegative_Cache_Max_Entries);
+    private static Cache<String, Boolean> sUpstreamErrorCache =
+        new Cache<String, Boolean>(sUpstream_Error_Expiration_Time,
+                                   sNegative_Cache_Max_Entries);
+
+    /**
+     * Name of the file backing the persistent cache tier.
+     */
+    private final static String sPersistent_Cache_File = "weather.cache";
+
+    /**
+     * Number of records kept in the persistent cache tier.
+     */
+    private final static int sPersistent_Cache_Capacity = 1024;
+
+    /**
+     * Persistent cache tier that survives process restarts, or null
+     * until openPersistentCache() has succeeded.  It is keyed by
+     * alias and remembers each alias's city id as well.
+     */
+    private static volatile PersistentWeatherCache sPersistentCache;
+
+    /**
+     * Number of milliseconds a request waits for a concurrent fetch
+     * of the same query before giving up.
+     */
+    private final static long sCoalesced_Wait_Timeout = 15000;
+
+    /**
+     * Number of milliseconds allowed to connect to the web service,
+     * and to wait for each read from it, when the caller's deadline
+     * doesn't call for less.
+     */
+    private final static int sDefault_Timeout = 15000;
+
+    /**
+     * Deadline of a lookup whose caller hasn't set one.
+     */
+    public final static long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Fetches that are currently in flight, keyed by query, so
+     * concurrent misses for the same query share one upstream
+     * request.
+     */
+    private final static ConcurrentHashMap<String, FutureTask<WeatherData>> sInFlight =
+        new ConcurrentHashMap<String, FutureTask<WeatherData>>();
+
+    /**
+     * Number of requests that were served by another request's
+     * upstream fetch.
+     */
+    private final static AtomicLong sCoalescedCount = new AtomicLong();
+
+    /**
+     * Number of threads fetching the misses of batch lookups.
+     */
+    private final static int sBatch_Threads = 4;
+
+    /**
+     * Fetches the misses of batch lookups concurrently.  Idle threads
+     * time out so the pool costs nothing when there's no traffic.
+     * Its tasks are AbortableTasks, so cancelling a batch aborts the
+     * fetches it's waiting for.
+     */
+    private final static ThreadPoolExecutor sBatchExecutor =
+        new ThreadPoolExecutor(sBatch_Threads,
+                               sBatch_Threads,
+                               30,
+                               TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+                return new AbortableTask<T>(callable);
+            }
+        };
+
+    static {
+        sBatchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Aborts fetches still running when their deadline passes, since
+     * a response that trickles in never trips the per-read timeout.
+     */
+    private final static ScheduledThreadPoolExecutor sDeadlineWatchdog =
+        new ScheduledThreadPoolExecutor(1,
+                                        new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                                                     "DeadlineWatchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Told whenever the cached weather of a city changes.
+     */
+    private final static CopyOnWriteArrayList<ChangeListener> sChangeListeners =
+        new CopyOnWriteArrayList<ChangeListener>();
+
+    /**
+     * Receives the weather of each city whose cache entry was
+     * replaced by different weather.
+     */
+    public interface ChangeListener {
+        /**
+         * Called on the thread that fetched @a weatherData, which
+         * should not be blocked for long.
+         */
+        void onWeatherChanged(WeatherData weatherData);
+    }
+
+    /**
+     * Tell @a listener about every change to the cached weather from
+     * now on.
+     */
+    public static void addChangeListener(ChangeListener listener) {
+        sChangeListeners.add(listener);
+    }
+
+    public static void removeChangeListener(ChangeListener listener) {
+        sChangeListeners.remove(listener);
+    }
+
+    /**
+     * Open the persistent cache tier in @a directory, so lookups can
+     * be served from what earlier processes fetched.  Does nothing if
+     * it is already open.
+     */
+    public static synchronized void openPersistentCache(File directory) {
+        if (sPersistentCache != null)
+            return;
+        try {
+            sPersistentCache =
+                new PersistentWeatherCache(new File(directory,
+                                                    sPersistent_Cache_File),
+                                           sPersistent_Cache_Capacity);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open persistent cache", e);
+        }
+    }
+
+    /**
+     * Send requests to the web service at @a url instead, e.g., a
+     * local stand-in server in tests, or to the real one if @a url is
+     * null.  A query is appended to @a url, so it must end with "?"
+     * or "&".
+     */
+    public static void setWebServiceUrl(String url) {
+        sWebServiceUrl = url != null
+            ? url
+            : sWeather_Web_Service_URL;
+    }
+
+    /**
+     * Send requests to the web service through @a transport instead,
+     * or through the default transport again if it's null.
+     */
+    public static void setTransport(HttpTransport transport) {
+        sTransport = transport != null
+            ? transport
+            : sDefault_Transport;
+    }
+
+    /**
+     * Make the cached weather of @a location expire now rather than
+     * when its time to live runs out.  Its next lookup returns it
+     * stale and refreshes it in the background.  Visible for testing
+     * only: the tests in this package use it to watch revalidation
+     * without waiting out a time to live.
+     */
+    static void expire(String location) {
+        final Long cityId = sAliases.peek(canonicalize(location));
+        if (cityId == null)
+            return;
+        final WeatherData weatherData = cache.peek(cityId);
+        if (weatherData != null)
+            cache.extendUntil(cityId,
+                              weatherData,
+                              System.currentTimeMillis());
+    }
+
+    public static HttpTransport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * @return The number of body bytes received from the web service.
+     */
+    public static long getBytesOnWire() {
+        return sBytesOnWire.get();
+    }
+
+    /**
+     * @return The number of body bytes parsed, after decompression.
+     */
+    public static long getBytesParsed() {
+        return sBytesParsed.get();
+    }
+
+    /**
+     * @return The number of conditional requests sent to refresh
+     *         cached weather.
+     */
+    public static long getConditionalRequestCount() {
+        return sConditionalRequestCount.get();
+    }
+
+    /**
+     * @return The number of conditional requests answered with 304,
+     *         i.e., refreshes that kept the cached weather.
+     */
+    public static long getNotModifiedCount() {
+        return sNotModifiedCount.get();
+    }
 
     /**
      * Obtain the Weather information.
      *
-     * @return The information that responds to your current weather search.
+     * @return The information that responds to your current weather
+     *         search, or null if none could be obtained.
      */
     public static WeatherData getResult(final String location) {
-        // Create a List that will return the WeatherData obtained
-        // from the Weather Service web service.
-        final List<WeatherData> returnList =
-            new ArrayList<WeatherData>();
+        return getResult(location, NO_DEADLINE);
+    }
 
-        Log.d(TAG, "Lookup weather for location in cache " + location);
-        // caching
-        WeatherData weatherData = cache.get(location);
-        if (weatherData != null) {
-            Log.d(TAG, "Weather for location found in cache " + location);
+    /**
+     * Obtain the Weather information by @a deadline.
+     *
+     * @param deadline SystemClock.elapsedRealtime() by which the
+     *        lookup must be done, or NO_DEADLINE.
+     * @return The information that responds to your current weather
+     *         search, or null if none could be obtained in time.
+     */
+    public static WeatherData getResult(final String location,
+                                        final long deadline) {
+        try {
+            return lookup(location, deadline);
+        } catch (WeatherLookupException e) {
+            Log.d(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Obtain the Weather information.  @a location is canonicalized
+     * and looked up in the alias index, so every spelling of a city
+     * that has been resolved before is served from the same entry.
+     *
+     * @return The information that responds to your current weather
+     *         search.
+     * @throws WeatherLookupException If no weather could be obtained.
+     */
+    public static WeatherData lookup(final String location)
+        throws WeatherLookupException {
+        return lookup(location, NO_DEADLINE);
+    }
+
+    /**
+     * Obtain the Weather information by @a deadline.  The time left
+     * bounds the upstream fetch, and a lookup whose deadline has
+     * already passed isn't even started, since its caller has given
+     * up on it.
+     *
+     * @param deadline SystemClock.elapsedRealtime() by which the
+     *        lookup must be done, or NO_DEADLINE.
+     * @throws WeatherLookupException If no weather could be obtained,
+     *         with reason DEADLINE_EXCEEDED if it ran out of time.
+     */
+    public static WeatherData lookup(final String location,
+                                     final long deadline)
+        throws WeatherLookupException {
+        checkDeadline(deadline, location);
+
+        final String alias = canonicalize(location);
+        final WeatherData weatherData = lookupCached(alias);
+        if (weatherData != null)
             return weatherData;
+
+        return lookupUpstream(alias, deadline);
+    }
+
+    /**
+     * Obtain the Weather information for every location in @a
+     * locations.  Locations that are cached are resolved at once; the
+     * others are fetched concurrently.
+     *
+     * @param errors Receives one slot per location, in input order:
+     *        null if the weather was found, or else why it wasn't.
+     * @param deadline SystemClock.elapsedRealtime() by which the
+     *        lookups must be done, or NO_DEADLINE.
+     * @return One slot per location, in input order: the weather, or
+     *         null if none could be obtained.
+     */
+    public static List<WeatherData> lookupBatch(final List<String> locations,
+                                                final List<String> errors,
+                                                final long deadline) {
+        return lookupBatch(locations, errors, deadline, false);
+    }
+
+    /**
+     * Obtain the current Weather information for every location in
+     * @a locations, e.g., to poll them for a subscription.  Like
+     * lookupBatch(), except cached weather is only used while it's
+     * fresh, and finding it isn't counted as an access, so polling
+     * doesn't make a city look popular to the cache's admission
+     * policy or to refresh-ahead.
+     */
+    public static List<WeatherData> refreshBatch(final List<String> locations,
+                                                 final List<String> errors,
+                                                 final long deadline) {
+        return lookupBatch(locations, errors, deadline, true);
+    }
+
+    /**
+     * @param peek True to use peekFresh() rather than lookupCached()
+     *        for the cached locations.
+     */
+    private static List<WeatherData> lookupBatch(final List<String> locations,
+                                                 final List<String> errors,
+                                                 final long deadline,
+                                                 final boolean peek) {
+        final int size = locations.size();
+        final List<WeatherData> results = new ArrayList<WeatherData>(size);
+        final List<Future<WeatherData>> pending =
+            new ArrayList<Future<WeatherData>>(size);
+
+        for (int i = 0; i < size; i++) {
+            final String alias = canonicalize(locations.get(i));
+            final WeatherData weatherData = peek
+                ? peekFresh(alias)
+                : lookupCached(alias);
+            results.add(weatherData);
+            errors.add(null);
+            if (weatherData != null)
+                pending.add(null);
+            else
+                pending.add(sBatchExecutor.submit(new Callable<WeatherData>() {
+                        @Override
+                        public WeatherData call() throws WeatherLookupException {
+                            return lookupUpstream(alias, deadline);
+                        }
+                    }));
+        }
+
+        Log.d(TAG, "Batch of " + size + " locations, "
+              + (size - Collections.frequency(pending, null))
+              + " fetched upstream");
+
+        // Each wait is bounded by the time left, and once the
+        // calling thread is interrupted the fetches still pending
+        // are cancelled rather than left running.
+        boolean interrupted = false;
+        for (int i = 0; i < size; i++) {
+            final Future<WeatherData> future = pending.get(i);
+            if (future == null)
+                continue;
+            if (interrupted) {
+                future.cancel(true);
+                errors.set(i, "Interrupted while fetching " + locations.get(i));
+                continue;
+            }
+            try {
+                results.set(i, deadline == NO_DEADLINE
+                               ? future.get()
+                               : future.get(Math.max(remaining(deadline), 0),
+                                            TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+                future.cancel(true);
+                errors.set(i, "Interrupted while fetching " + locations.get(i));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                errors.set(i, "Deadline exceeded looking up " + locations.get(i));
+            } catch (ExecutionException e) {
+                errors.set(i, e.getCause().getMessage());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Obtain the Weather information for every location in @a
+     * locations, streaming it to @a listener as it becomes available:
+     * first the weather of every cached location at once, then that
+     * of each other location as soon as its fetch completes.  Returns
+     * once onComplete() has been called, which is no later than @a
+     * deadline: fetches still running then are cancelled and reported
+     * as errors.
+     *
+     * @param deadline SystemClock.elapsedRealtime() by which the
+     *        lookups must be done, or NO_DEADLINE.
+     */
+    public static void lookupBatch(final List<String> locations,
+                                   final long deadline,
+                                   final BatchListener listener) {
+        final List<WeatherData> cached = new ArrayList<WeatherData>();
+        final CompletionService<WeatherData> completionService =
+            new ExecutorCompletionService<WeatherData>(sBatchExecutor);
+        final Map<Future<WeatherData>, String> pending =
+            new HashMap<Future<WeatherData>, String>();
+
+        for (String location : locations) {
+            final String alias = canonicalize(location);
+            final WeatherData weatherData = lookupCached(alias);
+            if (weatherData != null)
+                cached.add(weatherData);
+            else
+                pending.put(completionService.submit(new Callable<WeatherData>() {
+                        @Override
+                        public WeatherData call() throws WeatherLookupException {
+                            return lookupUpstream(alias, deadline);
+                        }
+                    }),
+                    location);
+        }
+
+        Log.d(TAG, "Streaming batch of " + locations.size() + " locations, "
+              + pending.size() + " fetched upstream");
+
+        if (!cached.isEmpty())
+            listener.onResults(cached);
+
+        // As in the list variant, each wait is bounded by the time
+        // left, and the fetches still pending once it runs out, or
+        // once the calling thread is interrupted, are cancelled.
+        int found = cached.size();
+        final List<String> errors = new ArrayList<String>();
+        while (!pending.isEmpty()) {
+            final Future<WeatherData> future;
+            try {
+                future = deadline == NO_DEADLINE
+                    ? completionService.take()
+                    : completionService.poll(Math.max(remaining(deadline), 0),
+                                             TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Map.Entry<Future<WeatherData>, String> entry : pending.entrySet()) {
+                    entry.getKey().cancel(true);
+                    errors.add("Interrupted while fetching " + entry.getValue());
+                }
+                break;
+            }
+            if (future == null) {
+                for (Map.Entry<Future<WeatherData>, String> entry : pending.entrySet()) {
+                    entry.getKey().cancel(true);
+                    errors.add("Deadline exceeded looking up " + entry.getValue());
+                }
+                break;
+            }
+            pending.remove(future);
+            try {
+                final List<WeatherData> results =
+                    new ArrayList<WeatherData>(1);
+                results.add(future.get());
+                found++;
+                listener.onResults(results);
+            } catch (InterruptedException e) {
+                // The future is done, so get() doesn't block.
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                errors.add(e.getCause().getMessage());
+            }
+        }
+
+        listener.onComplete(found, errors);
+    }
+
+    /**
+     * Receives the results of a streaming batch lookup, on the thread
+     * that called lookupBatch().
+     */
+    public interface BatchListener {
+        /**
+         * Called with the weather of one or more locations.
+         */
+        void onResults(List<WeatherData> results);
+
+        /**
+         * Called once every location has been looked up, with the
+         * number found and the reason each of the others wasn't.
+         */
+        void onComplete(int found, List<String> errors);
+    }
+
+    /**
+     * @class AbortableTask
+     *
+     * @brief A task whose cancel(true) also aborts the upstream request
+     *        its thread is blocked in.  Interrupting the thread alone
+     *        doesn't, since a socket connect or read ignores
+     *        interrupts until its timeout expires.
+     */
+    public static class AbortableTask<V> extends FutureTask<V> {
+        /**
+         * The thread running the task, or null.  Guarded by "this",
+         * so the thread can't be aborted once it has moved on to
+         * another task.
+         */
+        private Thread mRunner;
+
+        public AbortableTask(Callable<V> callable) {
+            super(callable);
+        }
+
+        public AbortableTask(Runnable runnable, V result) {
+            super(runnable, result);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mRunner = Thread.currentThread();
+            }
+            try {
+                super.run();
+            } finally {
+                synchronized (this) {
+                    mRunner = null;
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning)
+                synchronized (this) {
+                    if (mRunner != null)
+                        sTransport.abort(mRunner);
+                }
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return The weather for @a alias if the alias index and the
+     *         in-memory or persistent cache know it, else null.
+     */
+    private static WeatherData lookupCached(final String alias) {
+        Log.d(TAG, "Lookup weather for location in cache " + alias);
+
+        // caching
+        final Long cityId = sAliases.get(alias);
+        if (cityId != null) {
+            sRefreshAhead.recordAccess(cityId);
+            final WeatherData weatherData = cache.get(cityId);
+            if (weatherData != null) {
+                Log.d(TAG, "Weather for location found in cache " + alias);
+                return weatherData;
+            }
+        }
+
+        final WeatherData weatherData = getPersistentResult(alias);
+        if (weatherData != null)
+            Log.d(TAG, "Weather for location found in persistent cache " + alias);
+        return weatherData;
+    }
+
+    /**
+     * @return The weather for @a alias if the alias index and the
+     *         in-memory cache know it and it hasn't expired, else
+     *         null.  Doesn't count as an access.
+     */
+    private static WeatherData peekFresh(final String alias) {
+        final Long cityId = sAliases.peek(alias);
+        if (cityId == null
+            || System.currentTimeMillis() >= cache.getExpiresAt(cityId))
+            return null;
+        return cache.peek(cityId);
+    }
+
+    /**
+     * Obtain the weather for @a alias from the web service, unless a
+     * recent failure of the same query is remembered or the calling
+     * thread has been interrupted to cancel the lookup.
+     */
+    private static WeatherData lookupUpstream(final String alias,
+                                              final long deadline)
+        throws WeatherLookupException {
+        // A cancelled lookup needn't cost an upstream request.
+        if (Thread.currentThread().isInterrupted())
+            throw new WeatherLookupException(WeatherLookupException.Reason.CANCELLED,
+                                             "Lookup of " + alias + " cancelled");
+
+        // Once the city is known, fetch it by id, which is cheaper
+        // for the web service and can't resolve to another city.
+        final Long cityId = sAliases.get(alias);
+        final String query = cityId != null
+            ? cityQuery(cityId)
+            : locationQuery(alias);
+
+        checkNegativeCache(query, alias);
+
+        return fetchCoalesced(alias, cityId, query, deadline);
+    }
+
+    /**
+     * @return The number of milliseconds left until @a deadline, which
+     *         is in SystemClock.elapsedRealtime() time.
+     */
+    private static long remaining(final long deadline) {
+        return deadline == NO_DEADLINE
+            ? Long.MAX_VALUE
+            : deadline - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Throw DEADLINE_EXCEEDED if @a deadline has passed.
+     */
+    private static void checkDeadline(final long deadline,
+                                      final String location)
+        throws WeatherLookupException {
+        if (remaining(deadline) <= 0)
+            throw new WeatherLookupException(WeatherLookupException.Reason.DEADLINE_EXCEEDED,
+                                             "Deadline exceeded looking up " + location);
+    }
+
+    /**
+     * @return The timeout, in milliseconds, for the next network
+     *         operation of a fetch that must be done by @a deadline:
+     *         the time left, but no more than sDefault_Timeout.
+     * @throws WeatherLookupException If @a deadline has passed; a
+     *         timeout of 0 would mean waiting forever.
+     */
+    private static int timeout(final long deadline,
+                               final String query)
+        throws WeatherLookupException {
+        checkDeadline(deadline, query);
+        return (int) Math.min(remaining(deadline), sDefault_Timeout);
+    }
+
+    /**
+     * @return The canonical form of @a location: trimmed, lower case,
+     *         with runs of whitespace collapsed into one space and no
+     *         whitespace around commas, so "Nashville, US" and
+     *         " nashville,us" are the same alias.
+     */
+    public static String canonicalize(final String location) {
+        final String trimmed = location.trim().toLowerCase(Locale.ROOT);
+        final StringBuilder alias = new StringBuilder(trimmed.length());
+        boolean space = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            final char c = trimmed.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space
+                && c != ','
+                && alias.charAt(alias.length() - 1) != ',')
+                alias.append(' ');
+            alias.append(c);
+            space = false;
         }
+        return alias.toString();
+    }
+
+    /**
+     * @return The query that fetches the city with @a cityId.
+     */
+    private static String cityQuery(final long cityId) {
+        return "id=" + cityId;
+    }
+
+    /**
+     * @return The query that searches for @a alias.
+     */
+    private static String locationQuery(final String alias) {
+        try {
+            return "q=" + URLEncoder.encode(alias, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM supports UTF-8.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Throw the failure remembered for @a query, if any.
+     */
+    private static void checkNegativeCache(final String query,
+                                           final String location)
+        throws WeatherLookupException {
+        if (sNotFoundCache.get(query) != null)
+            throw new WeatherLookupException(WeatherLookupException.Reason.NOT_FOUND,
+                                             "No weather for " + location + " found (cached)");
+        if (sUpstreamErrorCache.get(query) != null)
+            throw new WeatherLookupException(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                             "Weather service unavailable for " + location + " (cached)");
+    }
 
-        Log.d(TAG, "Get weather for location from web service " + location);
+    /**
+     * Remember that @a query failed with @a e, in the negative cache
+     * that matches its reason.  Running out of the caller's time says
+     * nothing about the web service, so that isn't remembered.
+     */
+    private static void cacheFailure(final String query,
+                                     final WeatherLookupException e) {
+        if (e.getReason() == WeatherLookupException.Reason.NOT_FOUND)
+            sNotFoundCache.put(query, Boolean.TRUE);
+        else if (e.getReason() == WeatherLookupException.Reason.UPSTREAM_ERROR)
+            sUpstreamErrorCache.put(query, Boolean.TRUE);
+    }
 
-        // A List of JsonWeather objects.
-        JsonWeather jsonWeather = null;
+    /**
+     * Look up @a alias in the persistent cache tier.  A hit is
+     * promoted into the alias index and the in-memory cache with its
+     * original expiry, so a stale one is refreshed in the background
+     * as usual.
+     */
+    private static WeatherData getPersistentResult(final String alias) {
+        final PersistentWeatherCache persistentCache = sPersistentCache;
+        if (persistentCache == null)
+            return null;
 
+        final long[] metadata = new long[PersistentWeatherCache.METADATA_SIZE];
+        final WeatherData weatherData =
+            persistentCache.get(alias,
+                                sCache_Hard_Expiration_Time
+                                - Cache.DEFAULT_EXPIRATION_TIME,
+                                metadata);
+        if (weatherData == null)
+            return null;
+
+        final Long cityId =
+            metadata[PersistentWeatherCache.METADATA_CITY_ID];
+        sAliases.put(alias, cityId);
+        sRefreshAhead.recordAccess(cityId);
+        cache.putUntil(cityId,
+                       weatherData,
+                       metadata[PersistentWeatherCache.METADATA_EXPIRES_AT]);
+        // Go through the in-memory cache so a stale entry starts its
+        // background refresh.
+        final WeatherData cached = cache.get(cityId);
+        return cached != null ? cached : weatherData;
+    }
+
+    /**
+     * Compute how long weather observed at @a dt should be kept
+     * before it's refetched.  Fetching again before the web service's
+     * next expected update would only return the same observation.
+     *
+     * @param dt Time of the observation, in seconds since the epoch,
+     *        or 0 if unknown.
+     * @return The time to live, in milliseconds.
+     */
+    private static long timeToLive(long dt) {
+        return dt > 0
+            ? boundTimeToLive(dt * 1000 + sProvider_Update_Interval
+                              - System.currentTimeMillis())
+            : sMin_Expiration_Time;
+    }
+
+    /**
+     * @return @a timeToLive, in milliseconds, within the bounds on how
+     *         long fetched weather is kept fresh.
+     */
+    private static long boundTimeToLive(long timeToLive) {
+        return Math.max(sMin_Expiration_Time,
+                        Math.min(sMax_Expiration_Time,
+                                 timeToLive));
+    }
+
+    /**
+     * @return How long the web service says the response @a response
+     *         may be cached, in milliseconds, going by its
+     *         Cache-Control max-age or else its Expires and Date
+     *         headers, or -1 if it doesn't say.
+     */
+    private static long freshnessLifetime(HttpTransport.Response response) {
+        final String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null)
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ROOT);
+                if (directive.startsWith("max-age="))
+                    try {
+                        return Long.parseLong(directive.substring("max-age=".length()).trim())
+                            * 1000;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+            }
+
+        final long expires = parseHttpDate(response.getHeader("Expires"));
+        if (expires == -1)
+            return -1;
+        final long date = parseHttpDate(response.getHeader("Date"));
+        return expires - (date != -1
+                          ? date
+                          : System.currentTimeMillis());
+    }
+
+    /**
+     * @return The time of the HTTP date @a value, e.g., "Sun, 06 Nov
+     *         1994 08:49:37 GMT", in System.currentTimeMillis() time,
+     *         or -1 if it's null or malformed.
+     */
+    private static long parseHttpDate(String value) {
+        if (value == null)
+            return -1;
+        final SimpleDateFormat format =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
         try {
-            // Append the location to create the full URL.
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Fetch the weather for @a query, sharing the upstream request
+     * with any other thread that is already fetching the same query.
+     * The first thread to miss becomes the leader and does the fetch;
+     * the others wait for its result.
+     *
+     * @param alias The alias being looked up, which is recorded to
+     *        name the fetched city, or null for a refresh by id.
+     * @param cityId The city @a query fetches, or null if unknown.
+     * @param query The query sent to the web service.
+     * @param deadline SystemClock.elapsedRealtime() by which the
+     *        fetch must be done, or NO_DEADLINE.  A shared fetch runs
+     *        to the leader's deadline; a follower waits no longer
+     *        than its own.
+     */
+    private static WeatherData fetchCoalesced(final String alias,
+                                              final Long cityId,
+                                              final String query,
+                                              final long deadline)
+        throws WeatherLookupException {
+        final FutureTask<WeatherData> task =
+            new FutureTask<WeatherData>(new Callable<WeatherData>() {
+                    @Override
+                    public WeatherData call() throws WeatherLookupException {
+                        try {
+                            return fetch(alias, cityId, query, deadline);
+                        } catch (WeatherLookupException e) {
+                            cacheFailure(query, e);
+                            throw e;
+                        }
+                    }
+                });
+
+        FutureTask<WeatherData> inFlight =
+            sInFlight.putIfAbsent(query, task);
+
+        try {
+            if (inFlight == null) {
+                // This thread is the leader, so run the fetch here.
+                // The result (or failure) is cached before the task
+                // leaves the in-flight map, so late arrivals find it
+                // in one or the other.
+                try {
+                    task.run();
+                } finally {
+                    sInFlight.remove(query, task);
+                }
+                return task.get();
+            } else {
+                Log.d(TAG, "Waiting for in-flight fetch of " + query
+                      + " (coalesced " + sCoalescedCount.incrementAndGet() + ")");
+                try {
+                    return inFlight.get(Math.min(remaining(deadline),
+                                                 sCoalesced_Wait_Timeout),
+                                        TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    // The leader ran out of its own time or was
+                    // cancelled; this thread may still have some left
+                    // to fetch again.
+                    if (e.getCause() instanceof WeatherLookupException
+                        && (((WeatherLookupException) e.getCause()).getReason()
+                            == WeatherLookupException.Reason.DEADLINE_EXCEEDED
+                            || ((WeatherLookupException) e.getCause()).getReason()
+                               == WeatherLookupException.Reason.CANCELLED)
+                        && remaining(deadline) > 0)
+                        return fetchCoalesced(alias, cityId, query, deadline);
+                    throw e;
+                }
+            }
+        } catch (TimeoutException e) {
+            throw new WeatherLookupException(remaining(deadline) <= 0
+                                             ? WeatherLookupException.Reason.DEADLINE_EXCEEDED
+                                             : WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                             "Timed out waiting for in-flight fetch of "
+                                             + query,
+                                             e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WeatherLookupException(WeatherLookupException.Reason.CANCELLED,
+                                             "Interrupted while fetching " + query,
+                                             e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof WeatherLookupException)
+                throw (WeatherLookupException) e.getCause();
+            throw new WeatherLookupException(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                             "Unable to fetch " + query,
+                                             e.getCause());
+        }
+    }
+
+    /**
+     * Fetch the weather for @a query from the Weather web service and
+     * store it in the cache under the city id it resolved to.  @a
+     * alias, if not null, is recorded to name that city.
+     *
+     * If @a queriedCityId, the city @a query fetches if it's known,
+     * is cached along with the validators of the response it came
+     * from, the request is conditional, and a 304 answer just keeps
+     * the cached weather fresh for longer.
+     *
+     * The time left until @a deadline bounds connecting to the web
+     * service and each read from it, and the request is aborted if
+     * the deadline passes while the response is still arriving.
+     *
+     * @return The weather for @a query.
+     * @throws WeatherLookupException If the location is unknown, the
+     *         web service can't be used, or @a deadline passes.
+     */
+    private static WeatherData fetch(final String alias,
+                                     final Long queriedCityId,
+                                     final String query,
+                                     final long deadline)
+        throws WeatherLookupException {
+        Log.d(TAG, "Get weather from web service " + query
+              + " " + cache
+              + " " + sRefreshAhead);
+
+        final Validators previousValidators = queriedCityId != null
+            ? sValidators.get(queriedCityId)
+            : null;
+
+        // The alias the city's persistent record is kept under.  A
+        // refresh by id doesn't know it, but the last fetch may.
+        final String persistentAlias = alias != null
+            ? alias
+            : previousValidators != null
+            ? previousValidators.mAlias
+            : null;
+
+        // Validators are only used while the weather they came with
+        // is still what's cached.
+        final Validators validators = previousValidators != null
+            && previousValidators.mWeatherData == cache.peek(queriedCityId)
+            ? previousValidators
+            : null;
+
+        // The weather parsed, and the "cod" and "dt" of its
+        // document.
+        WeatherData weatherData = null;
+        final long[] metadata = new long[WeatherJSONParser.METADATA_SIZE];
+
+        // Validators of the response, if it has any.
+        String eTag = null;
+        String lastModified = null;
+
+        final HttpTransport transport = sTransport;
+        final DeadlineAbort deadlineAbort = deadline != NO_DEADLINE
+            ? new DeadlineAbort(transport, Thread.currentThread())
+            : null;
+        final ScheduledFuture<?> watch = deadlineAbort != null
+            ? sDeadlineWatchdog.schedule(deadlineAbort,
+                                         Math.max(remaining(deadline), 0),
+                                         TimeUnit.MILLISECONDS)
+            : null;
+
+        try {
+            // Append the query to create the full URL.
             final URL url =
-                new URL(sWeather_Web_Service_URL
-                        + location);
+                new URL(sWebServiceUrl
+                        + query);
 
-            // Opens a connection to the Weather Service.
-            HttpURLConnection urlConnection =
-                (HttpURLConnection) url.openConnection();
+            // Sends the GET request, connecting and reading within
+            // the time left.
+            final int timeout = timeout(deadline, query);
+            final HttpTransport.Response response =
+                transport.get(url,
+                              validators != null
+                              ? validators.addTo(sRequest_Headers)
+                              : sRequest_Headers,
+                              timeout,
+                              timeout);
+            if (validators != null)
+                sConditionalRequestCount.incrementAndGet();
 
-            // Sends the GET request and reads the Json results.
+            // Reads the Json results.  Closing the response lets the
+            // transport reuse its connection.
             try {
+                // The web service answers an unknown location with
+                // 404 and any other trouble with some other non-200
+                // status.
+                final int responseCode = response.getStatus();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                    && validators != null)
+                    return revalidated(persistentAlias,
+                                       queriedCityId,
+                                       validators,
+                                       freshnessLifetime(response),
+                                       query);
+                if (responseCode == HttpURLConnection.HTTP_NOT_FOUND)
+                    throw new WeatherLookupException(WeatherLookupException.Reason.NOT_FOUND,
+                                                     "No weather for " + query + " found");
+                if (responseCode != HttpURLConnection.HTTP_OK)
+                    throw new WeatherLookupException(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                                     "Weather service returned " + responseCode
+                                                     + " for " + query);
+
+                eTag = response.getHeader("ETag");
+                lastModified = response.getHeader("Last-Modified");
+
                  // Create the parser.
                 final WeatherJSONParser parser = new WeatherJSONParser();
 
-                InputStream in = urlConnection.getInputStream();
-                in = new BufferedInputStream(in);
-                // Parse the Json results and create JsonWeather data
-                // objects.
-                jsonWeather = parser.parseJson(in);
+                // Decompress the body while it's parsed, rather than
+                // reading all of it first, counting the bytes on
+                // either side of the decompression.
+                final CountingInputStream wire =
+                    new CountingInputStream(response.getBody());
+                final CountingInputStream parsed =
+                    new CountingInputStream("gzip".equalsIgnoreCase(response.getHeader("Content-Encoding"))
+                                            ? new GZIPInputStream(wire)
+                                            : wire);
+                final InputStream in = new BufferedInputStream(parsed);
+                try {
+                    // Parse the Json results straight into our
+                    // WeatherData object, which can be passed
+                    // between processes.
+                    weatherData = parser.parseWeatherData(in, metadata);
+                } finally {
+                    sBytesOnWire.addAndGet(wire.getCount());
+                    sBytesParsed.addAndGet(parsed.getCount());
+                    Log.d(TAG, "Read " + wire.getCount() + " bytes for "
+                          + parsed.getCount() + " bytes of Json for " + query);
+                }
             } finally {
-                urlConnection.disconnect();
+                response.close();
             }
+        } catch (WeatherLookupException e) {
+            throw e;
         } catch (Exception e) {
-            e.printStackTrace();
+            // A cancelled lookup's request was aborted, which isn't a
+            // failure of the web service.
+            if (Thread.currentThread().isInterrupted())
+                throw new WeatherLookupException(WeatherLookupException.Reason.CANCELLED,
+                                                 "Fetch of " + query + " cancelled",
+                                                 e);
+            // Nor is one that timed out or was aborted because the
+            // deadline passed.
+            if (remaining(deadline) <= 0)
+                throw new WeatherLookupException(WeatherLookupException.Reason.DEADLINE_EXCEEDED,
+                                                 "Deadline exceeded fetching weather for " + query,
+                                                 e);
+            if (e instanceof SocketTimeoutException)
+                throw new WeatherLookupException(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                                 "Timed out fetching weather for " + query,
+                                                 e);
+            throw new WeatherLookupException(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                             "Unable to fetch weather for " + query,
+                                             e);
+        } finally {
+            if (deadlineAbort != null) {
+                deadlineAbort.done();
+                watch.cancel(false);
+            }
         }
 
         // See if we parsed any valid data.
-        if (jsonWeather != null && jsonWeather.getCod() == 200l) {
-            // Convert the JsonWeather data objects to our WeatherData
-            // object, which can be passed between processes.
-            Log.d(TAG, "Got weather for location. Store it in cache and return " + location);
-            double speed = jsonWeather.getWind()!=null?jsonWeather.getWind().getSpeed():0;
-            double deg = jsonWeather.getWind()!=null?jsonWeather.getWind().getDeg():0;
-            double temp = jsonWeather.getMain()!=null?jsonWeather.getMain().getTemp():0;
-            long hunidity = jsonWeather.getMain()!=null?jsonWeather.getMain().getHumidity():0;
-            long sunrise = jsonWeather.getSys()!=null?jsonWeather.getSys().getSunrise():0;
-            long sunset = jsonWeather.getSys()!=null?jsonWeather.getSys().getSunset():0;
-            weatherData = new WeatherData(jsonWeather.getName(),
-                                          speed,
-                                          deg,
-                                          temp,
-                                          hunidity,
-                                          sunrise,
-                                          sunset);
-            cache.put(location, weatherData);
+        final long cod = metadata[WeatherJSONParser.METADATA_COD];
+        final long dt = metadata[WeatherJSONParser.METADATA_DT];
+        if (weatherData == null)
+            throw new WeatherLookupException(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                             "No weather data parsed for " + query);
+        else if (cod == HttpURLConnection.HTTP_NOT_FOUND)
+            throw new WeatherLookupException(WeatherLookupException.Reason.NOT_FOUND,
+                                             "No weather for " + query + " found");
+        else if (cod != 200l)
+            throw new WeatherLookupException(WeatherLookupException.Reason.UPSTREAM_ERROR,
+                                             "Weather service returned cod " + cod
+                                             + " for " + query);
+        else {
+            Log.d(TAG, "Got weather for city " + weatherData.getmId()
+                  + ". Store it in cache and return " + query);
+            // Without a city id there's nothing to key the result
+            // by, so it's returned without being cached.
+            final long cityId = weatherData.getmId();
+            if (cityId == 0)
+                return weatherData;
+
+            final long timeToLive = timeToLive(dt);
+            final long expiresAt = System.currentTimeMillis() + timeToLive;
+            final WeatherData previous = cache.peek(cityId);
+            cache.putUntil(cityId, weatherData, expiresAt);
+            if (eTag != null || lastModified != null)
+                sValidators.putUntil(cityId,
+                                     new Validators(weatherData,
+                                                    persistentAlias,
+                                                    timeToLive,
+                                                    eTag,
+                                                    lastModified),
+                                     expiresAt + sCache_Hard_Expiration_Time);
+            if (!weatherData.equals(previous))
+                for (ChangeListener listener : sChangeListeners)
+                    listener.onWeatherChanged(weatherData);
+            if (alias != null)
+                sAliases.put(alias, cityId);
+            persist(persistentAlias, cityId, weatherData, expiresAt);
             return weatherData;
-        }  else
-            return null;
+        }
     }
 
+    /**
+     * The web service found the weather of @a cityId unchanged since
+     * the response @a validators came from, so keep the cached copy
+     * fresh as if it had just been fetched again: for @a
+     * freshnessLifetime milliseconds if the 304 said how long, or
+     * else for as long as the original response was.  The persistent
+     * record under @a alias, if any, is kept fresh too.
+     *
+     * @return The cached weather.
+     */
+    private static WeatherData revalidated(final String alias,
+                                           final Long cityId,
+                                           final Validators validators,
+                                           final long freshnessLifetime,
+                                           final String query) {
+        final long expiresAt = System.currentTimeMillis()
+            + boundTimeToLive(freshnessLifetime >= 0
+                              ? freshnessLifetime
+                              : validators.mTimeToLive);
+        sNotModifiedCount.incrementAndGet();
+        if (cache.extendUntil(cityId, validators.mWeatherData, expiresAt)) {
+            sValidators.putUntil(cityId,
+                                 validators,
+                                 expiresAt + sCache_Hard_Expiration_Time);
+            persist(alias, cityId, validators.mWeatherData, expiresAt);
+            Log.d(TAG, "Weather not modified for " + query);
+        }
+        return validators.mWeatherData;
+    }
+
+    /**
+     * Record @a weatherData for @a alias in the persistent cache
+     * tier, if there is one and @a alias isn't null.
+     */
+    private static void persist(final String alias,
+                                final long cityId,
+                                final WeatherData weatherData,
+                                final long expiresAt) {
+        final PersistentWeatherCache persistentCache = sPersistentCache;
+        if (persistentCache != null && alias != null)
+            persistentCache.put(alias, cityId, weatherData, expiresAt);
+    }
+
+    /**
+     * Aborts the request a thread is fetching when the fetch's
+     * deadline passes, unless the fetch is done by then.
+     */
+    private static class DeadlineAbort implements Runnable {
+        private final HttpTransport mTransport;
+        private final Thread mThread;
+
+        /**
+         * Whether the fetch is done.  Guarded by "this", so the thread
+         * can't be aborted once it has moved on to another request.
+         */
+        private boolean mDone;
+
+        private DeadlineAbort(HttpTransport transport,
+                              Thread thread) {
+            mTransport = transport;
+            mThread = thread;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!mDone)
+                mTransport.abort(mThread);
+        }
+
+        private synchronized void done() {
+            mDone = true;
+        }
+    }
+
+    /**
+     * Validators of a response, i.e., its ETag and Last-Modified
+     * headers, kept with the weather parsed from it.
+     */
+    private static class Validators {
+        private final WeatherData mWeatherData;
+
+        /**
+         * The alias the weather was last fetched for, or null.
+         */
+        private final String mAlias;
+
+        /**
+         * Number of milliseconds the weather was kept fresh for.
+         */
+        private final long mTimeToLive;
+
+        private final String mETag;
+        private final String mLastModified;
+
+        private Validators(WeatherData weatherData,
+                           String alias,
+                           long timeToLive,
+                           String eTag,
+                           String lastModified) {
+            mWeatherData = weatherData;
+            mAlias = alias;
+            mTimeToLive = timeToLive;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * @return @a headers plus the headers that make a request
+         *         conditional on these validators.
+         */
+        private Map<String, String> addTo(Map<String, String> headers) {
+            final Map<String, String> conditional =
+                new HashMap<String, String>(headers);
+            if (mETag != null)
+                conditional.put("If-None-Match", mETag);
+            if (mLastModified != null)
+                conditional.put("If-Modified-Since", mLastModified);
+            return conditional;
+        }
+    }
+
+    /**
+     * @class Cache
+     *
+     * @brief A bounded, thread-safe cache that combines per-entry
+     *        time-to-live expiration with least-recently-used
+     *        eviction.  Hit, miss, expiration, and eviction counters
+     *        are kept so the cache can be sized from real traffic.
+     *
+     *        The cache can optionally run in stale-while-revalidate
+     *        mode.  An entry older than the (soft) expiration time but
+     *        younger than the hard expiration time is still returned,
+     *        and a single background refresh of that key is handed to
+     *        the Refresher.
+     *
+     *        An optional AdmissionPolicy decides whether a new key may
+     *        displace the least recently used entry of a full cache.
+     *
+     *        Every entry is scheduled in a TimerWheel for the moment
+     *        it can no longer be returned, and the ExpirySweeper
+     *        removes it then, so memory follows the live working set
+     *        even for keys that are never read again.
+     */
     public static class Cache<K, V> {
+        /**
+         * Default number of milliseconds an entry remains valid.
+         */
+        public static final int DEFAULT_EXPIRATION_TIME = 10000;
+
+        /**
+         * Default maximum number of entries held by the cache.
+         */
+        public static final int DEFAULT_MAX_ENTRIES = 128;
+
+        /**
+         * Number of milliseconds an entry remains valid unless it is
+         * stored with its own expiration time.
+         */
+        private final int expirationTime;
 
-        private int DEFAULT_EXPIRATION_TIME = 10000;
+        /**
+         * Number of milliseconds past its expiration time that a
+         * stale entry may still be returned while it is being
+         * refreshed.  Zero when stale-while-revalidate mode is off.
+         */
+        private final int staleTime;
 
-        private int expirationTime;
+        /**
+         * Maximum number of entries held before the least recently
+         * used one is evicted.
+         */
+        private final int maxEntries;
+
+        /**
+         * Refreshes stale entries in stale-while-revalidate mode, or
+         * null if the mode is off.
+         */
+        private final Refresher<K> refresher;
+
+        /**
+         * Runs the background refreshes.
+         */
+        private final Executor refreshExecutor;
+
+        /**
+         * Decides whether a new key displaces the eviction victim, or
+         * null to always admit.
+         */
+        private final AdmissionPolicy<K> admissionPolicy;
+
+        /**
+         * Entries kept in access order, so the eldest entry is
+         * always the least recently used one.  Guarded by "this".
+         */
+        private final LinkedHashMap<K, CacheEntry<K, V>> map;
+
+        /**
+         * Schedules every entry in "map" for removal.  Guarded by
+         * "this".
+         */
+        private final TimerWheel wheel =
+            new TimerWheel(ExpirySweeper.TICK, System.currentTimeMillis());
+
+        /**
+         * Removes the entries the wheel finds expired.
+         */
+        private final TimerWheel.Listener expirer = new TimerWheel.Listener() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void onExpired(TimerWheel.Node node) {
+                    map.remove(((CacheEntry<K, V>) node).key);
+                    expirationCount++;
+                }
+            };
+
+        /**
+         * Usage counters.  Guarded by "this".
+         */
+        private long hitCount;
+        private long missCount;
+        private long expirationCount;
+        private long evictionCount;
+        private long staleHitCount;
+        private long refreshCount;
+        private long rejectionCount;
 
         public Cache() {
-            this.expirationTime = DEFAULT_EXPIRATION_TIME;
-            map = new ConcurrentHashMap<K, CacheEntry<V>>();
+            this(DEFAULT_EXPIRATION_TIME, DEFAULT_MAX_ENTRIES);
         }
+
         public Cache(int expirationTime) {
+            this(expirationTime, DEFAULT_MAX_ENTRIES);
+        }
+
+        public Cache(int expirationTime, int maxEntries) {
+            this(expirationTime, expirationTime, maxEntries, null, null);
+        }
+
+        /**
+         * Constructor for a cache in stale-while-revalidate mode.
+         *
+         * @param expirationTime Milliseconds an entry is fresh.
+         * @param hardExpirationTime Milliseconds a stale entry may
+         *        still be returned while it is refreshed.
+         * @param maxEntries Maximum number of entries held.
+         * @param refresher Called on @a refreshExecutor to reload a
+         *        stale key; it is expected to put() the new value.
+         * @param refreshExecutor Runs the background refreshes.
+         */
+        public Cache(int expirationTime,
+                     int hardExpirationTime,
+                     int maxEntries,
+                     Refresher<K> refresher,
+                     Executor refreshExecutor) {
+            this(expirationTime,
+                 hardExpirationTime,
+                 maxEntries,
+                 refresher,
+                 refreshExecutor,
+                 null);
+        }
+
+        /**
+         * Constructor for a cache with an admission policy, optionally
+         * in stale-while-revalidate mode.
+         *
+         * @param admissionPolicy Decides whether a new key may evict
+         *        the least recently used entry, or null to always
+         *        admit.
+         */
+        public Cache(int expirationTime,
+                     int hardExpirationTime,
+                     int maxEntries,
+                     Refresher<K> refresher,
+                     Executor refreshExecutor,
+                     AdmissionPolicy<K> admissionPolicy) {
+            if (maxEntries <= 0)
+                throw new IllegalArgumentException("maxEntries must be positive");
+            if (hardExpirationTime < expirationTime)
+                throw new IllegalArgumentException("hardExpirationTime must not be less than expirationTime");
+            if (refresher != null && refreshExecutor == null)
+                throw new IllegalArgumentException("refreshExecutor is required with a refresher");
             this.expirationTime = expirationTime;
-            map = new ConcurrentHashMap<K, CacheEntry<V>>();
+            this.staleTime = refresher != null
+                ? hardExpirationTime - expirationTime
+                : 0;
+            this.maxEntries = maxEntries;
+            this.refresher = refresher;
+            this.refreshExecutor = refreshExecutor;
+            this.admissionPolicy = admissionPolicy;
+            map = new LinkedHashMap<K, CacheEntry<K, V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<K, V>> eldest) {
+                    if (size() > Cache.this.maxEntries) {
+                        wheel.cancel(eldest.getValue());
+                        evictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            ExpirySweeper.register(this);
         }
 
-        private ConcurrentHashMap<K, CacheEntry<V>> map;
+        /**
+         * @return The value stored for @a key, or null if there is
+         *         none or it has expired.  In stale-while-revalidate
+         *         mode a stale value is returned and a refresh of @a
+         *         key is started if none is already running.
+         */
+        public synchronized V get(K key) {
+            if (admissionPolicy != null)
+                admissionPolicy.record(key);
 
-        public V get(K key) {
-            CacheEntry<V> entry = map.get(key);
+            CacheEntry<K, V> entry = map.get(key);
             if (entry != null) {
-                if  (System.currentTimeMillis() - entry.moment < expirationTime) {
+                long now = System.currentTimeMillis();
+                if (now < entry.expiresAt) {
+                    hitCount++;
+                    return entry.value;
+                } else if (now < entry.expiresAt + staleTime) {
+                    staleHitCount++;
+                    if (!entry.refreshing)
+                        startRefresh(key, entry);
                     return entry.value;
                 } else {
-                    map.remove(key, entry);
+                    map.remove(key);
+                    wheel.cancel(entry);
+                    expirationCount++;
                 }
             }
+            missCount++;
             return null;
         }
 
-        public void put(K key, V value) {
-            map.put(key, new CacheEntry<V>(value));
+        /**
+         * Hand @a key to the refresher in the background.  The
+         * refreshing flag stops a second refresh of the same entry;
+         * it is cleared afterwards in case the refresh failed to
+         * replace the entry.  Must be called with "this" locked.
+         */
+        private void startRefresh(final K key,
+                                  final CacheEntry<K, V> entry) {
+            entry.refreshing = true;
+            try {
+                refreshExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                refresher.refresh(key);
+                            } finally {
+                                synchronized (Cache.this) {
+                                    entry.refreshing = false;
+                                }
+                            }
+                        }
+                    });
+                refreshCount++;
+            } catch (RejectedExecutionException e) {
+                entry.refreshing = false;
+            }
+        }
+
+        /**
+         * Store @a value for @a key, evicting the least recently used
+         * entry if the cache is full.
+         */
+        public synchronized void put(K key, V value) {
+            putUntil(key,
+                     value,
+                     System.currentTimeMillis() + expirationTime);
+        }
+
+        /**
+         * Store @a value for @a key, keeping it fresh until @a
+         * expiresAt (in System.currentTimeMillis() time) rather than
+         * for the default expiration time.
+         */
+        public synchronized void putUntil(K key, V value, long expiresAt) {
+            if (admissionPolicy != null
+                && map.size() >= maxEntries
+                && !map.containsKey(key)) {
+                // Iterating doesn't change the access order, so this
+                // is the entry the put would evict.
+                final Map.Entry<K, CacheEntry<K, V>> victim =
+                    map.entrySet().iterator().next();
+                final boolean victimExpired =
+                    System.currentTimeMillis()
+                    >= victim.getValue().expiresAt + staleTime;
+                if (!victimExpired
+                    && !admissionPolicy.admit(key, victim.getKey())) {
+                    rejectionCount++;
+                    return;
+                }
+            }
+            final CacheEntry<K, V> entry =
+                new CacheEntry<K, V>(key, value, expiresAt);
+            final CacheEntry<K, V> replaced = map.put(key, entry);
+            if (replaced != null)
+                wheel.cancel(replaced);
+            wheel.schedule(entry, expiresAt + staleTime);
+        }
+
+        /**
+         * Keep the entry for @a key fresh until @a expiresAt, if it
+         * still holds @a value, without replacing it.
+         *
+         * @return false if the entry is gone or holds another value.
+         */
+        public synchronized boolean extendUntil(K key, V value, long expiresAt) {
+            final CacheEntry<K, V> entry = map.get(key);
+            if (entry == null || entry.value != value)
+                return false;
+            wheel.cancel(entry);
+            entry.expiresAt = expiresAt;
+            wheel.schedule(entry, expiresAt + staleTime);
+            return true;
+        }
+
+        /**
+         * Remove every entry that can no longer be returned.  Called
+         * by the ExpirySweeper; the cost depends on the number of
+         * expired entries, not on the size of the cache.
+         */
+        public synchronized void expireEntries() {
+            wheel.advance(System.currentTimeMillis(), expirer);
+        }
+
+        /**
+         * @return The value stored for @a key, even if it has
+         *         expired, or null if there is none.  Doesn't count as
+         *         a hit or miss.
+         */
+        public synchronized V peek(K key) {
+            CacheEntry<K, V> entry = map.get(key);
+            return entry != null ? entry.value : null;
+        }
+
+        /**
+         * @return The expiration time of the entry for @a key, or 0 if
+         *         there is none.  Doesn't count as a hit or miss.
+         */
+        public synchronized long getExpiresAt(K key) {
+            CacheEntry<K, V> entry = map.get(key);
+            return entry != null ? entry.expiresAt : 0;
+        }
+
+        /**
+         * @return The number of entries currently held, including
+         *         expired ones the sweeper hasn't removed yet.
+         */
+        public synchronized int size() {
+            return map.size();
+        }
+
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        public synchronized long getHitCount() {
+            return hitCount;
+        }
+
+        public synchronized long getMissCount() {
+            return missCount;
+        }
+
+        public synchronized long getExpirationCount() {
+            return expirationCount;
+        }
+
+        public synchronized long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public synchronized long getStaleHitCount() {
+            return staleHitCount;
+        }
+
+        public synchronized long getRefreshCount() {
+            return refreshCount;
+        }
+
+        public synchronized long getRejectionCount() {
+            return rejectionCount;
+        }
+
+        /**
+         * Provides a printable summary of the cache usage counters.
+         */
+        @Override
+        public synchronized String toString() {
+            long lookups = hitCount + staleHitCount + missCount;
+            return "Cache [size=" + map.size()
+                + ", maxEntries=" + maxEntries
+                + ", hits=" + hitCount
+                + ", misses=" + missCount
+                + ", staleHits=" + staleHitCount
+                + ", hitRatio=" + (lookups == 0 ? 0 : (double) (hitCount + staleHitCount) / lookups)
+                + ", refreshes=" + refreshCount
+                + ", expirations=" + expirationCount
+                + ", evictions=" + evictionCount
+                + ", rejections=" + rejectionCount + "]";
+        }
+
+        /**
+         * Reloads a stale key in stale-while-revalidate mode.
+         */
+        public interface Refresher<K> {
+            /**
+             * Fetch a fresh value for @a key and put() it into the
+             * cache.  Called on the refresh executor.
+             */
+            void refresh(K key);
+        }
+
+        /**
+         * Decides which keys are worth caching when the cache is
+         * full.  Called with the cache locked.
+         */
+        public interface AdmissionPolicy<K> {
+            /**
+             * Record an access to @a key, hit or miss.
+             */
+            void record(K key);
+
+            /**
+             * @return True if @a candidate should be cached at the
+             *         cost of evicting @a victim.
+             */
+            boolean admit(K candidate, K victim);
         }
 
-        private static class CacheEntry<V> {
-            private V value;
-            private long moment;
+        private static class CacheEntry<K, V> extends TimerWheel.Node {
+            private final K key;
+            private final V value;
+            private long expiresAt;
+            private boolean refreshing;
 
-            private CacheEntry(V value) {
+            private CacheEntry(K key, V value, long expiresAt) {
+                this.key = key;
                 this.value = value;
-                this.moment = System.currentTimeMillis();
+                this.expiresAt = expiresAt;
             }
         }
 